@@ -0,0 +1,19 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+/*
+ * One measured operation. Setup and TearDown run once around all iterations,
+ * SetupIteration and TearDownIteration around every single Run and are not timed.
+ */
+public abstract class Benchmark
+{
+    public abstract String Name();
+    public abstract void Run() throws Exception;
+
+    public void Setup() throws Exception { }
+    public void SetupIteration() throws Exception { }
+    public void TearDownIteration() throws Exception { }
+    public void TearDown() throws Exception { }
+
+    //number of elements one Run works on, reported next to the timings
+    public long OperationSize() { return 1; }
+}
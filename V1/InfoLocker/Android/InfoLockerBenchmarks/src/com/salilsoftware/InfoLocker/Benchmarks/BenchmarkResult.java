@@ -0,0 +1,48 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import java.util.Arrays;
+
+public class BenchmarkResult
+{
+    public String Name() { return m_name; }
+    public long OperationSize() { return m_operationSize; }
+    public int Iterations() { return m_samples.length; }
+
+    public long Min() { return m_samples[0]; }
+    public long Max() { return m_samples[m_samples.length - 1]; }
+    public long Percentile(int percent) { return m_samples[Math.min(m_samples.length - 1, (m_samples.length * percent) / 100)]; }
+
+    public long Mean()
+    {
+        long total = 0;
+        for (long sample : m_samples)
+            total += sample;
+
+        return total / m_samples.length;
+    }
+
+    private String m_name;
+    private long m_operationSize;
+    private long[] m_samples;
+
+    public BenchmarkResult(String name, long operationSize, long[] samples)
+    {
+        m_name = name;
+        m_operationSize = operationSize;
+        m_samples = samples.clone();
+        Arrays.sort(m_samples);
+    }
+
+    public String ToJson()
+    {
+        return "{ \"name\": \"" + m_name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"" +
+               ", \"operationSize\": " + m_operationSize +
+               ", \"iterations\": " + Iterations() +
+               ", \"unit\": \"ns/op\"" +
+               ", \"mean\": " + Mean() +
+               ", \"min\": " + Min() +
+               ", \"p50\": " + Percentile(50) +
+               ", \"p90\": " + Percentile(90) +
+               ", \"max\": " + Max() + " }";
+    }
+}
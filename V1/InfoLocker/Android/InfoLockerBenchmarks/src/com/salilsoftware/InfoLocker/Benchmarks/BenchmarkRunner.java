@@ -0,0 +1,109 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Runs benchmarks on a plain JVM and writes the results as JSON.
+ *
+ *   java -cp <InfoLockerForAndroid classes>:<InfoLockerBenchmarks classes>:<xmlpull implementation, e.g. kxml2>
+ *        com.salilsoftware.InfoLocker.Benchmarks.BenchmarkRunner [output.json] [name filter]
+ *
+ * Every benchmark gets WarmupIterations unmeasured runs first so the timings reflect
+ * compiled code rather than the interpreter.
+ */
+public class BenchmarkRunner
+{
+    public int WarmupIterations = 5;
+    public int MeasuredIterations = 20;
+
+    public BenchmarkResult Run(Benchmark benchmark) throws Exception
+    {
+        long[] samples = new long[MeasuredIterations];
+
+        benchmark.Setup();
+
+        try
+        {
+            for (int iteration = 0; iteration < WarmupIterations + MeasuredIterations; iteration++)
+            {
+                benchmark.SetupIteration();
+
+                long start = System.nanoTime();
+                benchmark.Run();
+                long elapsed = System.nanoTime() - start;
+
+                benchmark.TearDownIteration();
+
+                if (iteration >= WarmupIterations)
+                    samples[iteration - WarmupIterations] = elapsed;
+            }
+        }
+        finally
+        {
+            benchmark.TearDown();
+        }
+
+        return new BenchmarkResult(benchmark.Name(), benchmark.OperationSize(), samples);
+    }
+
+    public List<BenchmarkResult> RunAll(List<Benchmark> benchmarks, String filter) throws Exception
+    {
+        LinkedList<BenchmarkResult> results = new LinkedList<BenchmarkResult>();
+
+        for (Benchmark benchmark : benchmarks)
+        {
+            if ((filter != null) && !benchmark.Name().contains(filter))
+                continue;
+
+            BenchmarkResult result = Run(benchmark);
+            System.out.println(result.Name() + ": " + (result.Mean() / 1000) + " us/op (p90 " + (result.Percentile(90) / 1000) + " us)");
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    public static void WriteJson(List<BenchmarkResult> results, Writer writer) throws Exception
+    {
+        writer.write("{\n  \"benchmarks\": [\n");
+
+        int index = 0;
+        for (BenchmarkResult result : results)
+        {
+            writer.write("    " + result.ToJson());
+            if (++index < results.size())
+                writer.write(",");
+            writer.write("\n");
+        }
+
+        writer.write("  ]\n}\n");
+        writer.flush();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String output = (args.length > 0) ? args[0] : "benchmarks.json";
+        String filter = (args.length > 1) ? args[1] : null;
+
+        File workDirectory = new File(System.getProperty("java.io.tmpdir"), "InfoLockerBenchmarks");
+        workDirectory.mkdirs();
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        List<BenchmarkResult> results = runner.RunAll(StorageBenchmarks.All(new LockerGenerator(), workDirectory), filter);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "utf-8");
+        try
+        {
+            WriteJson(results, writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
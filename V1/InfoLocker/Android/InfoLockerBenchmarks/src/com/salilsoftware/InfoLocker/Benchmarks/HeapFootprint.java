@@ -0,0 +1,94 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import java.io.File;
+
+import com.salilsoftware.InfoLocker.Data.Node_Folder;
+import com.salilsoftware.InfoLocker.Data.StorageFile;
+
+/*
+ * Reports the retained heap of generated trees, per tree and per node.
+ * Run with a fixed heap (e.g. -Xms1g -Xmx1g) so that collections settle.
+ *
+ *   java ... com.salilsoftware.InfoLocker.Benchmarks.HeapFootprint [nodes]
+ */
+public class HeapFootprint
+{
+    public static void main(String[] args) throws Exception
+    {
+        int targetNodes = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+        LockerGenerator generator = new LockerGenerator();
+        generator.Depth = 4;
+        generator.NotesPerFolder = 8;
+        generator.FanOut = 1;
+        while (generator.NodeCount() < targetNodes)
+            generator.FanOut++;
+
+        long nodes = generator.NodeCount();
+
+        long before = UsedMemory();
+        Node_Folder root = generator.Generate();
+        long tree = UsedMemory() - before;
+
+        root.Hash();
+        long hashed = UsedMemory() - before;
+
+        System.out.println("{ \"nodes\": " + nodes +
+                           ", \"noteSize\": " + generator.NoteSize +
+                           ", \"treeBytes\": " + tree +
+                           ", \"bytesPerNode\": " + (tree / nodes) +
+                           ", \"treeWithDigestsBytes\": " + hashed +
+                           ", \"bytesPerNodeWithDigests\": " + (hashed / nodes) + " }");
+
+        //the same tree written to disk and loaded again, which goes through the storage's intern pool
+        File file = File.createTempFile("footprint", ".stg");
+        generator.CreateStorage(file.getPath(), StorageBenchmarks.Password).Close(false);
+
+        root = null;
+        before = UsedMemory();
+        StorageFile storage = new StorageFile(file.getPath());
+        storage.UnLock(StorageBenchmarks.Password);
+        long loaded = UsedMemory() - before;
+
+        System.out.println("{ \"nodes\": " + nodes +
+                           ", \"loadedBytes\": " + loaded +
+                           ", \"loadedBytesPerNode\": " + (loaded / nodes) + " }");
+
+        //what an idle storage keeps once locked and evicted, with and without its encrypted copy
+        storage.Lock();
+        storage.Evict();
+        long evicted = UsedMemory() - before;
+
+        storage.DropCache();
+        long dropped = UsedMemory() - before;
+
+        System.out.println("{ \"nodes\": " + nodes +
+                           ", \"evictedBytes\": " + evicted +
+                           ", \"droppedBytes\": " + dropped + " }");
+
+        storage.Close(false);
+        file.delete();
+    }
+
+    private static long UsedMemory() throws Exception
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+
+        //collect until the number stops going down. the first collections after a large
+        //array is released do not always give it back, so a few are always made
+        for (int attempt = 0; attempt < 10; attempt++)
+        {
+            System.gc();
+            Thread.sleep(50);
+
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if ((current >= used) && (attempt >= 3))
+                break;
+
+            used = Math.min(used, current);
+        }
+
+        return used;
+    }
+}
@@ -0,0 +1,97 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.salilsoftware.InfoLocker.Data.Node_Folder;
+import com.salilsoftware.InfoLocker.Data.Node_Note;
+import com.salilsoftware.InfoLocker.Data.StorageFile;
+
+/*
+ * Builds synthetic lockers. The same settings and seed always give the same tree,
+ * names are drawn from a small vocabulary the way template based lockers look.
+ */
+public class LockerGenerator
+{
+    public int Depth = 3;
+    public int FanOut = 6;
+    public int NotesPerFolder = 8;
+    public int NoteSize = 48;
+    public long Seed = 1;
+
+    private static final String[] FolderNames = { "Personal", "Work", "Banking", "Cards", "Email", "Shopping", "Travel", "Servers" };
+    private static final String[] NoteNames = { "Username", "Password", "URL", "PIN", "Account", "Notes", "Email", "Phone" };
+
+    public int NodeCount()
+    {
+        //folders at every level below the root, each with its notes
+        int folders = 0;
+        int level = 1;
+        for (int depth = 1; depth <= Depth; depth++)
+        {
+            level *= FanOut;
+            folders += level;
+        }
+
+        return 1 + folders + ((folders + 1) * NotesPerFolder);
+    }
+
+    public Node_Folder Generate()
+    {
+        Random random = new Random(Seed);
+
+        Node_Folder root = new Node_Folder();
+        root.Name("Generated");
+        Fill(root, Depth, random);
+        root.IsDirty(false);
+
+        return root;
+    }
+
+    public StorageFile CreateStorage(String filename, String password) throws Exception
+    {
+        StorageFile storage = new StorageFile();
+        storage.Create(filename, password);
+        storage.UnLock(password);
+
+        Node_Folder generated = Generate();
+        for (Node_Folder folder : new ArrayList<Node_Folder>(generated.SubFolders()))
+            storage.RootNode().AddNode(folder);
+        for (Node_Note note : new ArrayList<Node_Note>(generated.SubNotes()))
+            storage.RootNode().AddNode(note);
+
+        storage.Save();
+        return storage;
+    }
+
+    public String Content(Random random)
+    {
+        StringBuilder builder = new StringBuilder(NoteSize);
+        while (builder.length() < NoteSize)
+            builder.append((char)('a' + random.nextInt(26)));
+
+        return builder.toString();
+    }
+
+    private void Fill(Node_Folder folder, int depth, Random random)
+    {
+        for (int index = 0; index < NotesPerFolder; index++)
+        {
+            Node_Note note = new Node_Note();
+            note.Name(NoteNames[random.nextInt(NoteNames.length)]);
+            note.Content(Content(random));
+            folder.AddNode(note);
+        }
+
+        if (depth == 0)
+            return;
+
+        for (int index = 0; index < FanOut; index++)
+        {
+            Node_Folder child = new Node_Folder();
+            child.Name(FolderNames[random.nextInt(FolderNames.length)] + " " + index);
+            folder.AddNode(child);
+            Fill(child, depth - 1, random);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import com.salilsoftware.InfoLocker.Data.Node_Common;
+import com.salilsoftware.InfoLocker.Data.Node_Folder;
+import com.salilsoftware.InfoLocker.Data.Node_Note;
+import com.salilsoftware.InfoLocker.Data.StorageMerger;
+
+/*
+ * Checks the rules of StorageMerger on a plain JVM: every case builds a base tree, changes a
+ * local and a remote copy of it, merges them and compares the local tree with what the rules
+ * say it must be. The first case that does not hold throws.
+ *
+ *   java -cp <InfoLockerForAndroid classes>:<InfoLockerBenchmarks classes>
+ *        com.salilsoftware.InfoLocker.Benchmarks.MergeChecks
+ */
+public class MergeChecks
+{
+    public static void main(String[] args) throws Exception
+    {
+        TakesRemoteEdit();
+        EditBeatsRemoval();
+        RemovesUntouchedNode();
+        AddsRemoteFolder();
+        KeepsConflictCopy();
+        MatchesRepeatedNames();
+        MatchesNamesWithSeparator();
+
+        System.out.println("All merge checks passed");
+    }
+
+    private static void TakesRemoteEdit() throws Exception
+    {
+        Node_Folder base = Folder("Root", Note("a", "1"), Folder("Sub", Note("b", "2")));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        ((Node_Folder)remote.Resolve("Sub")).FindNote("b").Content("3");
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("TakesRemoteEdit", local, Folder("Root", Note("a", "1"), Folder("Sub", Note("b", "3"))));
+    }
+
+    private static void EditBeatsRemoval() throws Exception
+    {
+        Node_Folder base = Folder("Root", Note("a", "1"), Note("b", "2"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+
+        //a removed here and edited there, b the other way round
+        local.RemoveNode(local.FindNote("a"));
+        remote.FindNote("a").Content("1 edited");
+        local.FindNote("b").Content("2 edited");
+        remote.RemoveNode(remote.FindNote("b"));
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("EditBeatsRemoval", local, Folder("Root", Note("b", "2 edited"), Note("a", "1 edited")));
+    }
+
+    private static void RemovesUntouchedNode() throws Exception
+    {
+        Node_Folder base = Folder("Root", Note("a", "1"), Folder("Sub"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        remote.RemoveNode(remote.FindNote("a"));
+        remote.RemoveNode(remote.FindFolder("Sub"));
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("RemovesUntouchedNode", local, Folder("Root"));
+    }
+
+    private static void AddsRemoteFolder() throws Exception
+    {
+        Node_Folder base = Folder("Root", Note("a", "1"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        local.AddNode(Note("mine", "l"));
+        remote.AddNode(Folder("Theirs", Note("t", "r")));
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("AddsRemoteFolder", local, Folder("Root", Folder("Theirs", Note("t", "r")), Note("a", "1"), Note("mine", "l")));
+    }
+
+    private static void KeepsConflictCopy() throws Exception
+    {
+        Node_Folder base = Folder("Root", Note("a", "1"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        local.FindNote("a").Content("local");
+        remote.FindNote("a").Content("remote");
+
+        StorageMerger merger = new StorageMerger();
+        merger.Merge(base, local, remote);
+        Expect("KeepsConflictCopy", local, Folder("Root", Note("a", "local"), Note("a" + StorageMerger.ConflictSuffix, "remote")));
+
+        if ((merger.Conflicts().size() != 1) || (merger.Conflicts().getFirst().Parent() != local))
+            throw (new Exception("KeepsConflictCopy: conflict not reported"));
+    }
+
+    private static void MatchesRepeatedNames() throws Exception
+    {
+        //the second "x" is edited remotely and must not touch the first or the third
+        Node_Folder base = Folder("Root", Note("x", "1"), Note("x", "2"), Note("x", "3"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        remote.SubNotes().get(1).Content("2 edited");
+        local.SubNotes().get(2).Content("3 edited");
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("MatchesRepeatedNames", local, Folder("Root", Note("x", "1"), Note("x", "2 edited"), Note("x", "3 edited")));
+    }
+
+    private static void MatchesNamesWithSeparator() throws Exception
+    {
+        //names that look like a name plus an occurrence or like a path are still their own
+        Node_Folder base = Folder("Root", Folder("a", Note("b", "in folder")), Note("a/b", "slash"),
+                                  Note("x", "first"), Note("x/0", "not an occurrence"));
+        Node_Folder local = base.Clone();
+        Node_Folder remote = base.Clone();
+        remote.FindNote("a/b").Content("slash edited");
+        remote.FindNote("x/0").Content("edited");
+
+        new StorageMerger().Merge(base, local, remote);
+        Expect("MatchesNamesWithSeparator", local,
+               Folder("Root", Folder("a", Note("b", "in folder")), Note("a/b", "slash edited"),
+                      Note("x", "first"), Note("x/0", "edited")));
+    }
+
+    private static Node_Folder Folder(String name, Node_Common... children)
+    {
+        Node_Folder folder = new Node_Folder();
+        folder.Name(name);
+        for (Node_Common child : children)
+            folder.AddNode(child);
+
+        return folder;
+    }
+
+    private static Node_Note Note(String name, String content)
+    {
+        Node_Note note = new Node_Note();
+        note.Name(name);
+        note.Content(content);
+        return note;
+    }
+
+    private static void Expect(String check, Node_Folder actual, Node_Folder expected) throws Exception
+    {
+        if (!actual.IsEqual(expected))
+            throw (new Exception(check + ": expected " + Describe(expected) + " but merged " + Describe(actual)));
+
+        System.out.println(check + " ok");
+    }
+
+    private static String Describe(Node_Common node)
+    {
+        if (node.NodeType() == Node_Common.Type.Note)
+            return node.Name() + "=" + ((Node_Note)node).Content();
+
+        StringBuilder text = new StringBuilder(node.Name() + "{");
+        String separator = "";
+        for (Node_Common child : ((Node_Folder)node).SubNodes())
+        {
+            text.append(separator).append(Describe(child));
+            separator = ", ";
+        }
+
+        return text.append("}").toString();
+    }
+}
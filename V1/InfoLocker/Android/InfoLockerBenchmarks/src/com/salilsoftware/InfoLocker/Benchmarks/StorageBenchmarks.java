@@ -0,0 +1,676 @@
+package com.salilsoftware.InfoLocker.Benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salilsoftware.InfoLocker.Data.BulkImporter;
+import com.salilsoftware.InfoLocker.Data.Encryptor;
+import com.salilsoftware.InfoLocker.Data.LockerCatalog;
+import com.salilsoftware.InfoLocker.Data.NodeTraversal;
+import com.salilsoftware.InfoLocker.Data.Node_Common;
+import com.salilsoftware.InfoLocker.Data.Node_Folder;
+import com.salilsoftware.InfoLocker.Data.Node_Note;
+import com.salilsoftware.InfoLocker.Data.StorageFile;
+import com.salilsoftware.InfoLocker.Data.StorageSearch;
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.MetricsRegistry;
+import com.salilsoftware.InfoLocker.Utilities.NotifyConsumer;
+import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+
+public class StorageBenchmarks
+{
+    public static final String Password = "bench123";
+
+    public static List<Benchmark> All(final LockerGenerator generator, final File workDirectory) throws Exception
+    {
+        final String fileName = new File(workDirectory, "bench.stg").getPath();
+        final String copyName = new File(workDirectory, "bench-copy.stg").getPath();
+        final long nodes = generator.NodeCount();
+
+        LinkedList<Benchmark> benchmarks = new LinkedList<Benchmark>();
+
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+
+            public String Name() { return "StorageFile.Open"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                new File(fileName).delete();
+                generator.CreateStorage(fileName, Password).Close(false);
+            }
+
+            public void SetupIteration() throws Exception { m_storage = new StorageFile(fileName); }
+            public void Run() throws Exception { m_storage.UnLock(Password); }
+            public void TearDownIteration() throws Exception { m_storage.Close(false); }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+
+            public String Name() { return "StorageFile.SaveAs"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                new File(fileName).delete();
+                m_storage = generator.CreateStorage(fileName, Password);
+            }
+
+            public void Run() throws Exception { m_storage.SaveAs(copyName, Password, false); }
+            public void TearDown() throws Exception { m_storage.Close(false); }
+        });
+
+        //commit latency: one small change saved, forced to disk and renamed over the file
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+            private Node_Note m_note;
+            private int m_saves;
+
+            public String Name() { return "StorageFile.Save"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                new File(fileName).delete();
+                m_storage = generator.CreateStorage(fileName, Password);
+
+                m_note = new Node_Note();
+                m_note.Name("Changed");
+                m_storage.RootNode().AddNode(m_note);
+                m_saves = 0;
+            }
+
+            public void SetupIteration() throws Exception { m_note.Content("Save " + m_saves++); }
+            public void Run() throws Exception { m_storage.Save(); }
+            public void TearDown() throws Exception { m_storage.Close(false); }
+        });
+
+        //replaying a delta back to the tree it was saved from. the delta holds the same new
+        //subtree twice, the second time as a reference to the first
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+            private int m_latest;
+
+            public String Name() { return "StorageHistory.OpenVersion"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                String historyName = new File(workDirectory, "history.stg").getPath();
+                new File(historyName).delete();
+                Delete(new File(historyName + ".history"));
+
+                m_storage = generator.CreateStorage(historyName, Password);
+                m_storage.History().Enable();
+                m_storage.RootNode().IsDirty(true);
+                m_storage.Save();
+
+                Node_Folder copies = new Node_Folder();
+                copies.Name("Copies");
+                Node_Folder subtree = m_storage.RootNode().SubFolders().get(0);
+                for (int index = 0; index < 2; index++)
+                {
+                    Node_Folder holder = new Node_Folder();
+                    holder.Name("Copy" + index);
+                    holder.AddNode(subtree.Clone());
+                    copies.AddNode(holder);
+                }
+
+                m_storage.RootNode().AddNode(copies);
+                m_storage.Save();
+                m_latest = m_storage.History().Versions().size();
+            }
+
+            public void Run() throws Exception
+            {
+                if (!m_storage.History().OpenVersion(m_latest).IsEqual(m_storage.RootNode()))
+                    throw (new Exception("Version differs from what was saved"));
+            }
+
+            public void TearDown() throws Exception { m_storage.Close(false); }
+        });
+
+        //the comparison half of the integrity check that runs on every save: a freshly
+        //parsed tree has no digests yet, the live one usually has them cached
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+            private StorageFile m_written;
+
+            public String Name() { return "StorageFile.CheckIntegrity"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                new File(fileName).delete();
+                m_storage = generator.CreateStorage(fileName, Password);
+            }
+
+            public void SetupIteration() throws Exception
+            {
+                m_written = new StorageFile(fileName);
+                m_written.UnLock(Password);
+            }
+
+            public void Run() throws Exception
+            {
+                if (!m_storage.RootNode().IsEqual(m_written.RootNode()))
+                    throw (new Exception("Trees differ"));
+            }
+
+            public void TearDownIteration() throws Exception { m_written.Close(false); }
+            public void TearDown() throws Exception { m_storage.Close(false); }
+        });
+
+        final byte[] plainText = PlainText(generator, nodes);
+        final byte[] key = Encryptor.DeriveKey(Password, new byte[16], Encryptor.MinIterations);
+        final byte[] iv = new byte[16];
+
+        benchmarks.add(new Benchmark()
+        {
+            public String Name() { return "Encryptor.Encrypt"; }
+            public long OperationSize() { return plainText.length; }
+
+            public void Run() throws Exception
+            {
+                Encryptor.Encrypt(new ByteArrayInputStream(plainText), new ByteArrayOutputStream(plainText.length + 32), key, iv);
+            }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private byte[] m_cipherText;
+
+            public String Name() { return "Encryptor.Decrypt"; }
+            public long OperationSize() { return plainText.length; }
+
+            public void Setup() throws Exception
+            {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                Encryptor.Encrypt(new ByteArrayInputStream(plainText), output, key, iv);
+                m_cipherText = output.toByteArray();
+            }
+
+            public void Run() throws Exception { Encryptor.Decrypt(new ByteArrayInputStream(m_cipherText), key, iv); }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private Node_Folder m_folder;
+            private ArrayList<Node_Note> m_notes;
+
+            public String Name() { return "Node_Folder.AddNode"; }
+            public long OperationSize() { return 2000; }
+
+            public void SetupIteration() throws Exception
+            {
+                m_folder = new Node_Folder();
+                m_folder.Name("Target");
+                m_notes = new ArrayList<Node_Note>();
+                for (int index = 0; index < OperationSize(); index++)
+                {
+                    Node_Note note = new Node_Note();
+                    note.Name("Note " + index);
+                    m_notes.add(note);
+                }
+            }
+
+            public void Run() throws Exception
+            {
+                for (Node_Note note : m_notes)
+                    m_folder.AddNode(note);
+            }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private String m_csv;
+            private Node_Folder m_folder;
+
+            public String Name() { return "BulkImporter.ImportCsv"; }
+            public long OperationSize() { return 10000; }
+
+            public void Setup() throws Exception
+            {
+                StringBuilder csv = new StringBuilder("name,group,user,password\n");
+                Random random = new Random(generator.Seed);
+                for (int index = 0; index < OperationSize(); index++)
+                {
+                    csv.append("Site ").append(index).append(",Group ").append(index % 50).append(',');
+                    csv.append("user").append(index).append(",\"").append(generator.Content(random)).append("\"\n");
+                }
+
+                m_csv = csv.toString();
+            }
+
+            public void SetupIteration() throws Exception
+            {
+                m_folder = new Node_Folder();
+                m_folder.Name("Target");
+            }
+
+            public void Run() throws Exception
+            {
+                BulkImporter importer = new BulkImporter(m_folder);
+                importer.FolderColumn("group");
+                importer.ImportCsv(new StringReader(m_csv));
+            }
+        });
+
+        //typing into a large note, one edit per keystroke at a few places
+        benchmarks.add(new Benchmark()
+        {
+            private Node_Note m_note;
+            private Random m_random;
+
+            public String Name() { return "Node_Note.ApplyEdit"; }
+            public long OperationSize() { return 1000; }
+
+            public void SetupIteration() throws Exception
+            {
+                StringBuilder content = new StringBuilder();
+                Random random = new Random(generator.Seed);
+                while (content.length() < 1024 * 1024)
+                    content.append(generator.Content(random)).append('\n');
+
+                m_note = new Node_Note();
+                m_note.Name("Large");
+                m_note.Content(content.toString());
+                m_random = new Random(generator.Seed);
+            }
+
+            public void Run() throws Exception
+            {
+                int offset = 0;
+                for (int index = 0; index < OperationSize(); index++)
+                {
+                    if ((index % 50) == 0)
+                        offset = m_random.nextInt(1024 * 1024);
+
+                    m_note.ApplyEdit(offset++, 0, "x");
+                }
+            }
+        });
+
+        //scrolling through a huge folder a page at a time while children come and go before
+        //the visible page
+        benchmarks.add(new Benchmark()
+        {
+            private Node_Folder m_folder;
+            private Node_Folder.ChildCursor m_cursor;
+
+            public String Name() { return "Node_Folder.Children"; }
+            public long OperationSize() { return 1000; }
+
+            public void Setup() throws Exception
+            {
+                Random random = new Random(generator.Seed);
+                ArrayList<Node_Note> notes = new ArrayList<Node_Note>();
+                for (int index = 0; index < 50000; index++)
+                {
+                    Node_Note note = new Node_Note();
+                    note.Name("Note" + index);
+                    note.Content(generator.Content(random));
+                    notes.add(note);
+                }
+
+                m_folder = new Node_Folder();
+                m_folder.Name("Huge");
+                m_folder.AddNodes(notes);
+            }
+
+            public void SetupIteration() throws Exception
+            {
+                m_cursor = m_folder.Children(null, 25000).Next();
+            }
+
+            public void Run() throws Exception
+            {
+                for (int index = 0; index < OperationSize(); index++)
+                {
+                    Node_Common first = m_folder.ChildAt(0);
+                    m_folder.RemoveNode(first);
+                    m_folder.AddNode(first);
+
+                    Node_Folder.ChildPage page = m_folder.Children(m_cursor, 20);
+                    if (page.Nodes().isEmpty())
+                        throw (new Exception("Paged past the end"));
+
+                    m_cursor = page.Next();
+                }
+            }
+        });
+
+        //moving a whole generated tree back and forth between two folders of a storage
+        benchmarks.add(new Benchmark()
+        {
+            private StorageFile m_storage;
+            private Node_Folder m_first;
+            private Node_Folder m_second;
+            private Node_Folder m_tree;
+
+            public String Name() { return "Node_Folder.MoveNodes"; }
+            public long OperationSize() { return nodes; }
+
+            public void Setup() throws Exception
+            {
+                new File(fileName).delete();
+                m_storage = generator.CreateStorage(fileName, Password);
+
+                m_first = new Node_Folder();
+                m_first.Name("First");
+                m_second = new Node_Folder();
+                m_second.Name("Second");
+                m_storage.RootNode().AddNode(m_first);
+                m_storage.RootNode().AddNode(m_second);
+
+                m_tree = generator.Generate();
+                m_first.AddNode(m_tree);
+            }
+
+            public void Run() throws Exception
+            {
+                Node_Folder target = (m_tree.Parent() == m_first) ? m_second : m_first;
+                target.MoveNodes(Collections.singletonList(m_tree));
+            }
+
+            public void TearDown() throws Exception { m_storage.Close(false); }
+        });
+
+        //startup with many lockers: the cached list, then checking it against the directory
+        final File catalogDirectory = new File(workDirectory, "catalog");
+        final int lockers = 32;
+
+        benchmarks.add(new Benchmark()
+        {
+            public String Name() { return "LockerCatalog.Load"; }
+            public long OperationSize() { return lockers; }
+
+            public void Setup() throws Exception
+            {
+                CreateLockers(catalogDirectory, lockers);
+                new LockerCatalog(catalogDirectory.getPath()).Refresh();
+            }
+
+            public void Run() throws Exception
+            {
+                LockerCatalog catalog = new LockerCatalog(catalogDirectory.getPath());
+                if (!catalog.Load() || (catalog.Entries().size() != lockers))
+                    throw (new Exception("Catalog not loaded"));
+            }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private LockerCatalog m_catalog;
+
+            public String Name() { return "LockerCatalog.Refresh"; }
+            public long OperationSize() { return lockers; }
+
+            public void Setup() throws Exception { CreateLockers(catalogDirectory, lockers); }
+
+            public void SetupIteration() throws Exception
+            {
+                m_catalog = new LockerCatalog(catalogDirectory.getPath());
+                m_catalog.Load();
+            }
+
+            public void Run() throws Exception { m_catalog.Refresh(); }
+        });
+
+        //a text that is nowhere, so every node of every storage is looked at
+        final int searchStorages = 4;
+
+        benchmarks.add(new Benchmark()
+        {
+            private ArrayList<StorageFile> m_storages;
+
+            public String Name() { return "StorageSearch.Run"; }
+            public long OperationSize() { return nodes * searchStorages; }
+
+            public void Setup() throws Exception
+            {
+                m_storages = new ArrayList<StorageFile>();
+                for (int index = 0; index < searchStorages; index++)
+                {
+                    String searchName = new File(workDirectory, "search" + index + ".stg").getPath();
+                    new File(searchName).delete();
+                    m_storages.add(generator.CreateStorage(searchName, Password));
+                }
+            }
+
+            public void Run() throws Exception
+            {
+                StorageSearch search = new StorageSearch("no such text");
+                if (!search.Run(m_storages).isEmpty())
+                    throw (new Exception("Unexpected result"));
+            }
+
+            public void TearDown() throws Exception
+            {
+                for (StorageFile storage : m_storages)
+                    storage.Close(false);
+            }
+        });
+
+        //the same check of every note walked the three ways, the parallel one on every processor
+        benchmarks.add(new TraversalBenchmark("NodeTraversal.DepthFirst", generator, TraversalBenchmark.DepthFirst));
+        benchmarks.add(new TraversalBenchmark("NodeTraversal.BreadthFirst", generator, TraversalBenchmark.BreadthFirst));
+        benchmarks.add(new TraversalBenchmark("NodeTraversal.ForEachParallel", generator, TraversalBenchmark.Parallel));
+
+        benchmarks.add(new Benchmark()
+        {
+            private Node_Folder m_root;
+
+            public String Name() { return "Node_Folder.SortNodes"; }
+            public long OperationSize() { return nodes; }
+
+            public void SetupIteration() throws Exception { m_root = generator.Generate(); }
+            public void Run() throws Exception { m_root.SortNodes(-1); }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private Node_Folder m_first;
+            private Node_Folder m_second;
+
+            public String Name() { return "Node_Folder.IsEqual"; }
+            public long OperationSize() { return nodes; }
+
+            public void SetupIteration() throws Exception
+            {
+                m_first = generator.Generate();
+                m_second = generator.Generate();
+            }
+
+            public void Run() throws Exception
+            {
+                if (!m_first.IsEqual(m_second))
+                    throw (new Exception("Trees differ"));
+            }
+        });
+
+        benchmarks.add(new Benchmark()
+        {
+            private NotifyProvider m_provider;
+
+            public String Name() { return "NotifyProvider.NotifyPropertyChanged"; }
+            public long OperationSize() { return 10000; }
+
+            public void Setup() throws Exception
+            {
+                m_provider = new NotifyProvider();
+                for (int index = 0; index < 4; index++)
+                {
+                    m_provider.AddListner(new NotifyConsumer()
+                    {
+                        public void HandlePropertyChange(NotifyProvider source, String propName) { }
+                    });
+                }
+            }
+
+            public void Run() throws Exception
+            {
+                for (int index = 0; index < OperationSize(); index++)
+                    m_provider.NotifyPropertyChanged("Name");
+            }
+        });
+
+        //cost of the instrumentation calls themselves, without and with a sink installed
+        benchmarks.add(new MetricsBenchmark("Metrics.Disabled", null));
+        benchmarks.add(new MetricsBenchmark("Metrics.Enabled", new MetricsRegistry()));
+
+        return benchmarks;
+    }
+
+    private static class MetricsBenchmark extends Benchmark
+    {
+        private String m_name;
+        private MetricsRegistry m_registry;
+
+        public MetricsBenchmark(String name, MetricsRegistry registry)
+        {
+            m_name = name;
+            m_registry = registry;
+        }
+
+        public String Name() { return m_name; }
+        public long OperationSize() { return 100000; }
+
+        public void Setup() throws Exception { Metrics.Sink(m_registry); }
+        public void TearDown() throws Exception { Metrics.Sink(null); }
+
+        public void Run() throws Exception
+        {
+            for (int index = 0; index < OperationSize(); index++)
+            {
+                long start = Metrics.Start();
+                Metrics.Count("Benchmark.Counter");
+                Metrics.Stop("Benchmark.Timer", start);
+            }
+        }
+    }
+
+    private static class TraversalBenchmark extends Benchmark
+    {
+        public static final int DepthFirst = 0;
+        public static final int BreadthFirst = 1;
+        public static final int Parallel = 2;
+
+        private String m_name;
+        private LockerGenerator m_generator;
+        private int m_order;
+        private Node_Folder m_root;
+        private AtomicLong m_checked;
+
+        public TraversalBenchmark(String name, LockerGenerator generator, int order)
+        {
+            m_name = name;
+            m_generator = generator;
+            m_order = order;
+        }
+
+        public String Name() { return m_name; }
+        public long OperationSize() { return m_generator.NodeCount(); }
+
+        public void Setup() throws Exception
+        {
+            m_root = m_generator.Generate();
+            m_checked = new AtomicLong();
+        }
+
+        public void Run() throws Exception
+        {
+            m_checked.set(0);
+            NodeTraversal.Visitor visitor = new NodeTraversal.Visitor()
+            {
+                public Boolean Visit(Node_Common node) throws Exception
+                {
+                    Check(node);
+                    return true;
+                }
+            };
+
+            if (m_order == Parallel)
+            {
+                NodeTraversal.ForEachParallel(m_root, visitor);
+            }
+            else
+            {
+                for (Node_Common node : (m_order == BreadthFirst) ? m_root.BreadthFirst() : m_root.DepthFirst())
+                    visitor.Visit(node);
+            }
+
+            if (m_checked.get() != m_root.TotalNotes())
+                throw (new Exception("Notes missed"));
+        }
+
+        //what a validation pass would do: look at every byte of every note
+        private void Check(Node_Common node) throws Exception
+        {
+            if (node.NodeType() != Node_Common.Type.Note)
+                return;
+
+            byte[] content = ((Node_Note)node).ContentBytes();
+            for (int index = 0; index < content.length; index++)
+            {
+                if (content[index] == 0)
+                    throw (new Exception("Invalid content"));
+            }
+
+            m_checked.incrementAndGet();
+        }
+    }
+
+    private static void Delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                Delete(child);
+        }
+
+        file.delete();
+    }
+
+    private static void CreateLockers(File directory, int count) throws Exception
+    {
+        directory.mkdirs();
+        for (int index = 0; index < count; index++)
+        {
+            File file = new File(directory, "locker" + index + ".stg");
+            if (file.exists())
+                continue;
+
+            StorageFile storage = new StorageFile();
+            storage.Create(file.getPath(), Password);
+            storage.Close(false);
+        }
+    }
+
+    private static byte[] PlainText(LockerGenerator generator, long nodes) throws Exception
+    {
+        //roughly the size of the serialized generated locker
+        Random random = new Random(generator.Seed);
+        StringBuilder builder = new StringBuilder();
+        for (long index = 0; index < nodes; index++)
+            builder.append("<Note Name=\"Username\" Content=\"").append(generator.Content(random)).append("\"/>");
+
+        return builder.toString().getBytes("utf-8");
+    }
+}
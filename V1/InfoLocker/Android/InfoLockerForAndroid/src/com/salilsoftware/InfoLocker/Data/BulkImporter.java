@@ -0,0 +1,368 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.StringPool;
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+
+/*
+ * Imports large numbers of notes into a folder. Records are read one at a time and collected
+ * into a batch of at most BatchSize() notes, kept outside the tree. When the batch is full each
+ * new folder of it is built as a detached subtree and attached with a single AddNodes call per
+ * existing folder, so the tree notifies, dirties and invalidates digests once per batch instead
+ * of once per note. Only the batch is held besides the tree itself.
+ *
+ * CSV input has a header row. Every row becomes a note named after NameColumn() (the first
+ * column by default), placed below the folder path in FolderColumn() if there is one, with the
+ * remaining columns as "header: value" lines. XML input is the storage format itself: nested
+ * <Folder Name=""> and <Note Name="" Content=""> elements, the outermost folder is the target.
+ *
+ * Importing through ImportCsv or ImportXml is a single undo step.
+ */
+public class BulkImporter
+{
+    public static final int DefaultBatchSize = 1000;
+
+    //the part of the batch going below one folder, by folder name in the order first seen
+    private static class Batch
+    {
+        public LinkedHashMap<String, Batch> Folders = new LinkedHashMap<String, Batch>();
+        public ArrayList<Node_Note> Notes = new ArrayList<Node_Note>();
+    }
+
+    private Node_Folder m_target;
+    private Batch m_batch;
+    private int m_pending;
+    private int m_imported;
+    private int m_batchSize;
+    private String m_nameColumn;
+    private String m_folderColumn;
+
+    public BulkImporter(Node_Folder target)
+    {
+        m_target = target;
+        m_batch = new Batch();
+        m_pending = 0;
+        m_imported = 0;
+        m_batchSize = DefaultBatchSize;
+        m_nameColumn = null;
+        m_folderColumn = null;
+    }
+
+    public int BatchSize() { return m_batchSize; }
+    public void BatchSize(int value) { m_batchSize = Math.max(1, value); }
+
+    public String NameColumn() { return m_nameColumn; }
+    public void NameColumn(String value) { m_nameColumn = value; }
+
+    public String FolderColumn() { return m_folderColumn; }
+    public void FolderColumn(String value) { m_folderColumn = value; }
+
+    //notes attached to the tree so far
+    public int Imported() { return m_imported; }
+
+    public void Add(String folderPath, String name, String content)
+    {
+        Batch batch = Find(folderPath);
+
+        Node_Note note = new Node_Note();
+        note.Name(Intern(StringUtils.IsNullOrEmpty(name) ? "Untitled" : name));
+        if (content != null)
+            note.ContentBytes(Intern(StringUtils.ToUtf8(content)));
+
+        batch.Notes.add(note);
+        m_pending++;
+
+        if (m_pending >= m_batchSize)
+            Flush();
+    }
+
+    private Batch Find(String folderPath)
+    {
+        Batch batch = m_batch;
+        if (folderPath != null)
+        {
+            for (String segment : folderPath.split(Node_Folder.PathSeparator))
+            {
+                if (segment.length() == 0)
+                    continue;
+
+                Batch child = batch.Folders.get(segment);
+                if (child == null)
+                {
+                    child = new Batch();
+                    batch.Folders.put(segment, child);
+                }
+
+                batch = child;
+            }
+        }
+
+        return batch;
+    }
+
+    public void Flush()
+    {
+        if ((m_pending == 0) && m_batch.Folders.isEmpty())
+            return;
+
+        long start = Metrics.Start();
+        Attach(m_batch, m_target);
+        Metrics.Stop("BulkImporter.Flush", start);
+        Metrics.Count("BulkImporter.Notes", m_pending);
+
+        m_imported += m_pending;
+        m_pending = 0;
+        m_batch = new Batch();
+    }
+
+    public int ImportCsv(Reader reader) throws Exception
+    {
+        int before = m_imported;
+        UndoLog log = Log();
+        if (log != null)
+            log.Begin();
+
+        //quoted fields need one character of look ahead
+        if (!reader.markSupported())
+            reader = new BufferedReader(reader);
+
+        try
+        {
+            ArrayList<String> header = ReadCsvRow(reader);
+            if (header == null)
+                return 0;
+
+            int nameIndex = (m_nameColumn != null) ? header.indexOf(m_nameColumn) : 0;
+            int folderIndex = (m_folderColumn != null) ? header.indexOf(m_folderColumn) : -1;
+            if (nameIndex < 0)
+                throw (new Exception("Column '" + m_nameColumn + "' not found"));
+
+            StringBuilder content = new StringBuilder();
+            ArrayList<String> row = null;
+            while ((row = ReadCsvRow(reader)) != null)
+            {
+                if ((row.size() == 1) && (row.get(0).length() == 0))
+                    continue;
+
+                content.setLength(0);
+                for (int index = 0; index < row.size(); index++)
+                {
+                    if ((index == nameIndex) || (index == folderIndex) || (row.get(index).length() == 0))
+                        continue;
+
+                    if (content.length() > 0)
+                        content.append('\n');
+
+                    if (index < header.size())
+                        content.append(header.get(index)).append(": ");
+
+                    content.append(row.get(index));
+                }
+
+                Add((folderIndex >= 0) && (folderIndex < row.size()) ? row.get(folderIndex) : null,
+                    (nameIndex < row.size()) ? row.get(nameIndex) : null,
+                    content.toString());
+            }
+
+            Flush();
+        }
+        finally
+        {
+            if (log != null)
+                log.End();
+        }
+
+        return m_imported - before;
+    }
+
+    public int ImportXml(Reader reader) throws Exception
+    {
+        int before = m_imported;
+        UndoLog log = Log();
+        if (log != null)
+            log.Begin();
+
+        try
+        {
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(reader);
+
+            //names of the open folders below the outermost one
+            ArrayList<String> path = new ArrayList<String>();
+            int folderDepth = 0;
+
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT)
+            {
+                if (event == XmlPullParser.START_TAG)
+                {
+                    if (StringUtils.Equals(parser.getName(), "Folder"))
+                    {
+                        //empty folders are imported too
+                        if (folderDepth > 0)
+                        {
+                            path.add(parser.getAttributeValue(null, "Name"));
+                            Find(Path(path));
+                        }
+
+                        folderDepth++;
+                    }
+                    else if (StringUtils.Equals(parser.getName(), "Note"))
+                    {
+                        Add(Path(path),
+                            parser.getAttributeValue(null, "Name"),
+                            parser.getAttributeValue(null, "Content"));
+                    }
+                }
+                else if (event == XmlPullParser.END_TAG)
+                {
+                    if (StringUtils.Equals(parser.getName(), "Folder"))
+                    {
+                        folderDepth--;
+                        if (!path.isEmpty() && (folderDepth > 0))
+                            path.remove(path.size() - 1);
+                    }
+                }
+
+                event = parser.next();
+            }
+
+            Flush();
+        }
+        finally
+        {
+            if (log != null)
+                log.End();
+        }
+
+        return m_imported - before;
+    }
+
+    private static String Path(ArrayList<String> segments)
+    {
+        StringBuilder path = new StringBuilder();
+        for (String segment : segments)
+            path.append(segment).append(Node_Folder.PathSeparator);
+
+        return path.toString();
+    }
+
+    private void Attach(Batch batch, Node_Folder target)
+    {
+        ArrayList<Node_Common> detached = new ArrayList<Node_Common>();
+
+        for (Map.Entry<String, Batch> entry : batch.Folders.entrySet())
+        {
+            Node_Folder existing = target.FindFolder(entry.getKey());
+            if (existing != null)
+            {
+                Attach(entry.getValue(), existing);
+            }
+            else
+            {
+                Node_Folder folder = new Node_Folder();
+                folder.Name(Intern(entry.getKey()));
+                Attach(entry.getValue(), folder);
+                detached.add(folder);
+            }
+        }
+
+        detached.addAll(batch.Notes);
+        if (!detached.isEmpty())
+            target.AddNodes(detached);
+    }
+
+    //rfc 4180: fields may be quoted, quoted fields may hold commas, line breaks and doubled quotes
+    private static ArrayList<String> ReadCsvRow(Reader reader) throws Exception
+    {
+        ArrayList<String> row = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        Boolean quoted = false;
+        Boolean any = false;
+
+        int value = 0;
+        while ((value = reader.read()) >= 0)
+        {
+            char ch = (char)value;
+            any = true;
+
+            if (quoted)
+            {
+                if (ch == '"')
+                {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"')
+                    {
+                        field.append('"');
+                    }
+                    else
+                    {
+                        quoted = false;
+                        if (next >= 0)
+                            reader.reset();
+                    }
+                }
+                else
+                {
+                    field.append(ch);
+                }
+            }
+            else if (ch == '"')
+            {
+                quoted = true;
+            }
+            else if (ch == ',')
+            {
+                row.add(field.toString());
+                field.setLength(0);
+            }
+            else if (ch == '\n')
+            {
+                break;
+            }
+            else if (ch != '\r')
+            {
+                field.append(ch);
+            }
+        }
+
+        if (!any)
+            return null;
+
+        row.add(field.toString());
+        return row;
+    }
+
+    private String Intern(String value)
+    {
+        StringPool pool = Pool();
+        return (pool != null) ? pool.Intern(value) : value;
+    }
+
+    private byte[] Intern(byte[] value)
+    {
+        StringPool pool = Pool();
+        return (pool != null) ? pool.Intern(value) : value;
+    }
+
+    //the notes are built detached, so they are interned through the target's storage directly
+    private StringPool Pool()
+    {
+        return (m_target.Store() != null) ? m_target.Store().Strings() : null;
+    }
+
+    private UndoLog Log()
+    {
+        return (m_target.Store() != null) ? m_target.Store().UndoLog() : null;
+    }
+}
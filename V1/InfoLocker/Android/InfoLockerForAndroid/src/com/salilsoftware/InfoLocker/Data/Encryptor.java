@@ -5,24 +5,106 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+
 public class Encryptor
 {
-	public static void Encrypt(InputStream input, OutputStream output, String password) throws Exception
+	public static byte[] KeyBytes(String password) throws Exception
 	{
-		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
 	  	byte[] pwdBytes= password.getBytes("utf-8");
 		byte[] keyBytes= new byte[16];
 	  	int len= pwdBytes.length; 
 	  	if (len > keyBytes.length)
 	  		len = keyBytes.length;
 	  	System.arraycopy(pwdBytes, 0, keyBytes, 0, len);
+	  	return keyBytes;
+	}
+
+	public static final long DefaultDerivationMillis = 100;
+	public static final int MinIterations = 1000;
+
+	private static int s_calibratedIterations = 0;
+
+	//PBKDF2 with HMAC-SHA1, written against Mac because the platform key factory
+	//does not offer it on every supported version. one block gives the 128 bit key.
+	public static byte[] DeriveKey(String password, byte[] salt, int iterations) throws Exception
+	{
+		Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(password.getBytes("utf-8"), "HmacSHA1"));
+
+		mac.update(salt);
+		mac.update(new byte[] { 0, 0, 0, 1 });
+		byte[] block = mac.doFinal();
+		byte[] result = block.clone();
+
+		for (int iteration = 1; iteration < iterations; iteration++)
+		{
+			block = mac.doFinal(block);
+			for (int index = 0; index < result.length; index++)
+				result[index] ^= block[index];
+		}
+
+		byte[] keyBytes = new byte[16];
+		System.arraycopy(result, 0, keyBytes, 0, keyBytes.length);
+		return keyBytes;
+	}
+
+	//number of iterations that takes about DefaultDerivationMillis on this device,
+	//measured once per process
+	public static synchronized int CalibratedIterations() throws Exception
+	{
+		if (s_calibratedIterations == 0)
+			s_calibratedIterations = CalibrateIterations(DefaultDerivationMillis);
+
+		return s_calibratedIterations;
+	}
+
+	public static int CalibrateIterations(long targetMillis) throws Exception
+	{
+		byte[] salt = new byte[16];
+		int sample = MinIterations;
+		long elapsed = 0;
+
+		//the first run pays for loading the providers
+		DeriveKey("calibrate", salt, sample);
+
+		//keep doubling the sample until it runs long enough to be measured reliably
+		while (true)
+		{
+			long start = System.nanoTime();
+			DeriveKey("calibrate", salt, sample);
+			elapsed = Math.max(System.nanoTime() - start, 1);
+
+			if ((elapsed * 4 >= targetMillis * 1000000L) || (sample >= (Integer.MAX_VALUE / 2)))
+				break;
+
+			sample *= 2;
+		}
+
+		long iterations = (targetMillis * 1000000L * sample) / elapsed;
+		return (int)Math.max(MinIterations, Math.min(iterations, Integer.MAX_VALUE));
+	}
+
+	public static void Encrypt(InputStream input, OutputStream output, String password) throws Exception
+	{
+		byte[] keyBytes = KeyBytes(password);
+		Encrypt(input, output, keyBytes, keyBytes);
+	}
+
+	public static void Encrypt(InputStream input, OutputStream output, byte[] keyBytes, byte[] ivBytes) throws Exception
+	{
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
 		SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-		IvParameterSpec ivSpec = new IvParameterSpec(keyBytes);
+		IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
 		cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
 
+		long start = Metrics.Start();
+		long totalBytes = 0;
+
 		byte[] bytes = new byte[1024];
 		int blockSize = 1024;
 		int bytesRead = 0;
@@ -56,6 +138,8 @@ public class Encryptor
 			}
 			
 			bytesRead = input.read(bytes);
+			if (bytesRead > 0)
+				totalBytes += bytesRead;
 		}
 		while(bytesRead != -1);
 		
@@ -68,22 +152,28 @@ public class Encryptor
 		input.close();
 		output.flush();
 		output.close();
+
+		Metrics.Stop("Encryptor.Encrypt", start);
+		Metrics.Count("Encryptor.EncryptedBytes", totalBytes);
 	}
 
 	public static ByteArrayOutputStream Decrypt(InputStream input, String password) throws Exception
+	{
+		byte[] keyBytes = KeyBytes(password);
+		return Decrypt(input, keyBytes, keyBytes);
+	}
+
+	public static ByteArrayOutputStream Decrypt(InputStream input, byte[] keyBytes, byte[] ivBytes) throws Exception
 	{
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 		
 		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-	  	byte[] pwdBytes= password.getBytes("utf-8");
-		byte[] keyBytes= new byte[16];
-	  	int len= pwdBytes.length; 
-	  	if (len > keyBytes.length)
-	  		len = keyBytes.length;
-	  	System.arraycopy(pwdBytes, 0, keyBytes, 0, len);
 		SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-		IvParameterSpec ivSpec = new IvParameterSpec(keyBytes);
+		IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
 	    cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+
+		long start = Metrics.Start();
+		long totalBytes = 0;
 		
 		byte[] bytes = new byte[1024];
 		int blockSize = 1024;
@@ -107,6 +197,8 @@ public class Encryptor
 			}
 			
 			bytesRead = input.read(bytes);
+			if (bytesRead > 0)
+				totalBytes += bytesRead;
 		}
 		while(bytesRead != -1);
 
@@ -118,6 +210,9 @@ public class Encryptor
 
 		input.close();
 		output.flush();
+
+		Metrics.Stop("Encryptor.Decrypt", start);
+		Metrics.Count("Encryptor.DecryptedBytes", totalBytes);
 		
 		return output;
 	}
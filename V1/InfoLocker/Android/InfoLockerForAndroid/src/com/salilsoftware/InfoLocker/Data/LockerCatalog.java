@@ -0,0 +1,481 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.NotifyConsumer;
+import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+
+/*
+ * The lockers in one directory, listed without opening them. What a list needs to show, the
+ * name, size and time of each file, its header and how many folders and notes it holds, is
+ * kept in a small cache file next to the lockers. Load() only reads that cache, so a list is
+ * populated at startup with one file read however many lockers there are. Refresh() then
+ * checks the directory against it, on several threads: every locker is stat'ed, and only the
+ * headers of files whose time or size changed are read again. Node counts are only known for
+ * lockers that were unlocked through the catalog, they are -1 otherwise.
+ *
+ * StorageFile instances are created by Entry.Storage() when a locker is actually used.
+ *
+ * The cache is not encrypted. It holds nothing the directory itself does not show apart from
+ * the node counts.
+ */
+public class LockerCatalog extends NotifyProvider implements NotifyConsumer
+{
+    public static final String Extension = ".stg";
+    public static final String CacheName = ".lockers";
+
+    private static final int CacheVersion = 1;
+    private static final int MaxScanThreads = 4;
+
+    public class Entry
+    {
+        public String FileName() { return m_fileName; }
+        public String Name() { return m_name; }
+        public long LastWriteTime() { return m_lastWriteTime; }
+        public long FileSize() { return m_fileSize; }
+
+        //0 for files from before the header
+        public int FormatVersion() { return m_formatVersion; }
+        public int Iterations() { return m_iterations; }
+
+        //-1 until the locker was unlocked through the catalog
+        public int FolderCount() { return m_folderCount; }
+        public int NoteCount() { return m_noteCount; }
+
+        private String m_fileName;
+        private String m_name;
+        private long m_lastWriteTime;
+        private long m_fileSize;
+        private int m_formatVersion;
+        private int m_iterations;
+        private int m_folderCount;
+        private int m_noteCount;
+        private StorageFile m_storage;
+
+        private Entry(String filename)
+        {
+            m_fileName = filename;
+            m_name = new File(filename).getName().replaceAll(".stg", "");
+            m_lastWriteTime = 0;
+            m_fileSize = 0;
+            m_formatVersion = 0;
+            m_iterations = 0;
+            m_folderCount = -1;
+            m_noteCount = -1;
+            m_storage = null;
+        }
+
+        //whether the file is still the one described, stats it
+        public Boolean IsCurrent()
+        {
+            File file = new File(m_fileName);
+            return ((file.lastModified() == m_lastWriteTime) && (file.length() == m_fileSize));
+        }
+
+        public synchronized StorageFile Storage() throws Exception
+        {
+            if (m_storage == null)
+            {
+                m_storage = new StorageFile(m_fileName);
+                m_storage.AddListner(LockerCatalog.this);
+                Metrics.Count("LockerCatalog.Storages");
+            }
+
+            return m_storage;
+        }
+
+        private void ReadHeader() throws Exception
+        {
+            StorageHeader header = StorageHeader.Read(m_fileName);
+            m_formatVersion = (header != null) ? header.FormatVersion() : 0;
+            m_iterations = (header != null) ? header.Iterations() : 0;
+        }
+    }
+
+    private String m_directory;
+    private HashMap<String, Entry> m_entries;
+    private boolean m_changed;
+
+    public LockerCatalog(String directory)
+    {
+        m_directory = directory;
+        m_entries = new HashMap<String, Entry>();
+        m_changed = false;
+    }
+
+    public String Directory() { return m_directory; }
+
+    public String CacheFileName() { return new File(m_directory, CacheName).getPath(); }
+
+    //by name
+    public synchronized List<Entry> Entries()
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>(m_entries.values());
+        Collections.sort(entries, new Comparator<Entry>()
+        {
+            public int compare(Entry object1, Entry object2)
+            {
+                return object1.Name().compareToIgnoreCase(object2.Name());
+            }
+        });
+
+        return entries;
+    }
+
+    public synchronized Entry Find(String name)
+    {
+        for (Entry entry : m_entries.values())
+        {
+            if (StringUtils.Equals(entry.Name(), name))
+                return entry;
+        }
+
+        return null;
+    }
+
+    //reads the cache only, returns false if there is none or it cannot be used
+    public Boolean Load()
+    {
+        long start = Metrics.Start();
+        HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        FileInputStream stream = null;
+
+        try
+        {
+            File file = new File(CacheFileName());
+            if (!file.isFile())
+                return false;
+
+            stream = new FileInputStream(file);
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(new InputStreamReader(stream, "utf-8"));
+
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT)
+            {
+                if (event == XmlPullParser.START_TAG)
+                {
+                    if (StringUtils.Equals(parser.getName(), "Lockers"))
+                    {
+                        if (Integer.parseInt(parser.getAttributeValue(null, "Version")) != CacheVersion)
+                            return false;
+                    }
+                    else if (StringUtils.Equals(parser.getName(), "Locker"))
+                    {
+                        Entry entry = new Entry(new File(m_directory, parser.getAttributeValue(null, "File")).getPath());
+                        entry.m_lastWriteTime = Long.parseLong(parser.getAttributeValue(null, "Time"));
+                        entry.m_fileSize = Long.parseLong(parser.getAttributeValue(null, "Size"));
+                        entry.m_formatVersion = Integer.parseInt(parser.getAttributeValue(null, "Format"));
+                        entry.m_iterations = Integer.parseInt(parser.getAttributeValue(null, "Iterations"));
+                        entry.m_folderCount = Integer.parseInt(parser.getAttributeValue(null, "Folders"));
+                        entry.m_noteCount = Integer.parseInt(parser.getAttributeValue(null, "Notes"));
+                        entries.put(entry.FileName(), entry);
+                    }
+                }
+
+                event = parser.next();
+            }
+        }
+        catch (Exception exp)
+        {
+            //the cache is rebuilt by the next refresh
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if (stream != null)
+                {
+                    stream.close();
+                    stream = null;
+                }
+            }
+            catch (Exception exp)
+            {
+            }
+        }
+
+        synchronized (this)
+        {
+            //entries already handed out keep their storages
+            for (Entry entry : entries.values())
+            {
+                Entry existing = m_entries.get(entry.FileName());
+                if (existing != null)
+                    entry.m_storage = existing.m_storage;
+            }
+
+            m_entries = entries;
+            m_changed = false;
+        }
+
+        Metrics.Stop("LockerCatalog.Load", start);
+        NotifyPropertyChanged("Entries");
+        return true;
+    }
+
+    //brings the catalog in line with the directory, returns whether anything changed
+    public Boolean Refresh() throws Exception
+    {
+        long start = Metrics.Start();
+
+        File[] files = new File(m_directory).listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String filename)
+            {
+                return filename.toLowerCase().endsWith(Extension);
+            }
+        });
+
+        if (files == null)
+            throw (new Exception("Directory '" + m_directory + "' not found"));
+
+        HashMap<String, Entry> current = null;
+        synchronized (this)
+        {
+            current = new HashMap<String, Entry>(m_entries);
+        }
+
+        ArrayList<Callable<Entry>> scans = new ArrayList<Callable<Entry>>(files.length);
+        for (File file : files)
+            scans.add(new Scan(file, current.get(file.getPath())));
+
+        ArrayList<Entry> scanned = new ArrayList<Entry>(files.length);
+        if (!scans.isEmpty())
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(scans.size(), MaxScanThreads));
+            try
+            {
+                for (Future<Entry> result : executor.invokeAll(scans))
+                    scanned.add(result.get());
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        Boolean changed = false;
+        synchronized (this)
+        {
+            HashMap<String, Entry> entries = new HashMap<String, Entry>();
+            for (Entry entry : scanned)
+            {
+                Entry existing = m_entries.get(entry.FileName());
+                if (existing != entry)
+                {
+                    if (existing != null)
+                        entry.m_storage = existing.m_storage;
+
+                    changed = true;
+                }
+
+                entries.put(entry.FileName(), entry);
+            }
+
+            if (entries.size() != m_entries.size())
+                changed = true;
+
+            m_entries = entries;
+            m_changed |= changed;
+        }
+
+        Save();
+
+        Metrics.Stop("LockerCatalog.Refresh", start);
+        Metrics.Count("LockerCatalog.Scanned", files.length);
+
+        if (changed)
+            NotifyPropertyChanged("Entries");
+
+        return changed;
+    }
+
+    //stats one locker, reads its header only when the file is not the one in the cache
+    private class Scan implements Callable<Entry>
+    {
+        private File m_file;
+        private Entry m_cached;
+
+        public Scan(File file, Entry cached)
+        {
+            m_file = file;
+            m_cached = cached;
+        }
+
+        public Entry call() throws Exception
+        {
+            long lastWriteTime = m_file.lastModified();
+            long fileSize = m_file.length();
+
+            if ((m_cached != null) &&
+                (m_cached.LastWriteTime() == lastWriteTime) &&
+                (m_cached.FileSize() == fileSize))
+                return m_cached;
+
+            Entry entry = new Entry(m_file.getPath());
+            entry.m_lastWriteTime = lastWriteTime;
+            entry.m_fileSize = fileSize;
+
+            try
+            {
+                entry.ReadHeader();
+            }
+            catch (Exception exp)
+            {
+                //a damaged locker is still listed, opening it reports what is wrong
+            }
+
+            Metrics.Count("LockerCatalog.HeadersRead");
+            return entry;
+        }
+    }
+
+    //writes the cache if anything changed since it was read or written
+    public synchronized void Save() throws Exception
+    {
+        if (!m_changed)
+            return;
+
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        XmlSerializer serializer = factory.newSerializer();
+        ByteArrayOutputStream writer = new ByteArrayOutputStream();
+        serializer.setOutput(writer, "utf-8");
+        serializer.startDocument("utf-8", false);
+
+        serializer.startTag(null, "Lockers");
+        serializer.attribute(null, "Version", Integer.toString(CacheVersion));
+
+        for (Entry entry : m_entries.values())
+        {
+            serializer.startTag(null, "Locker");
+            serializer.attribute(null, "File", new File(entry.FileName()).getName());
+            serializer.attribute(null, "Time", Long.toString(entry.LastWriteTime()));
+            serializer.attribute(null, "Size", Long.toString(entry.FileSize()));
+            serializer.attribute(null, "Format", Integer.toString(entry.FormatVersion()));
+            serializer.attribute(null, "Iterations", Integer.toString(entry.Iterations()));
+            serializer.attribute(null, "Folders", Integer.toString(entry.FolderCount()));
+            serializer.attribute(null, "Notes", Integer.toString(entry.NoteCount()));
+            serializer.endTag(null, "Locker");
+        }
+
+        serializer.endTag(null, "Lockers");
+        serializer.endDocument();
+
+        //a cache that is cut short must not replace a good one
+        File file = new File(CacheFileName());
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+
+        try
+        {
+            stream = new FileOutputStream(tmpFile);
+            writer.writeTo(stream);
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+
+        //renaming over the old cache keeps it until the new one is in place, it is only
+        //deleted first where a rename cannot replace a file
+        if (!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file)))
+        {
+            tmpFile.delete();
+            throw (new Exception("Could not write '" + file.getPath() + "'"));
+        }
+
+        m_changed = false;
+    }
+
+    private synchronized Entry FindEntry(StorageFile storage)
+    {
+        for (Entry entry : m_entries.values())
+        {
+            if (entry.m_storage == storage)
+                return entry;
+        }
+
+        return null;
+    }
+
+	public void HandlePropertyChange(NotifyProvider source, String propName)
+	{
+		if (!(source instanceof StorageFile))
+			return;
+
+		//the storage read or wrote its file, or was unlocked
+		if (!StringUtils.Equals(propName, "FileInfo") && !StringUtils.Equals(propName, "RootNode"))
+			return;
+
+		StorageFile storage = (StorageFile)source;
+		Entry entry = FindEntry(storage);
+		if (entry == null)
+			return;
+
+		Boolean changed = false;
+		try
+		{
+			synchronized (this)
+			{
+				if (StringUtils.Equals(propName, "FileInfo") && (storage.FileInfo() != null) &&
+					((storage.FileInfo().LastWriteTime() != entry.LastWriteTime()) ||
+					 (storage.FileInfo().FileSize() != entry.FileSize())))
+				{
+					entry.m_lastWriteTime = storage.FileInfo().LastWriteTime();
+					entry.m_fileSize = storage.FileInfo().FileSize();
+					entry.ReadHeader();
+					changed = true;
+				}
+
+				//counts are only taken from a tree that matches the file
+				StorageFile.StorageStatistics statistics = storage.Statistics();
+				if ((statistics != null) && !storage.IsDirty())
+				{
+					if ((statistics.Folders() != entry.m_folderCount) || (statistics.Notes() != entry.m_noteCount))
+					{
+						entry.m_folderCount = statistics.Folders();
+						entry.m_noteCount = statistics.Notes();
+						changed = true;
+					}
+				}
+
+				m_changed |= changed;
+			}
+
+			Save();
+		}
+		catch (Exception exp)
+		{
+			//the cache is only a cache, the next refresh corrects it
+		}
+
+		if (changed)
+			NotifyPropertyChanged("Entries");
+	}
+}
@@ -0,0 +1,43 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+
+/*
+ * Passes everything through to the wrapped stream and feeds it to a mac on the way, so the
+ * mac of the cipher text is known as soon as encryption ends without reading it again.
+ */
+class MacOutputStream extends FilterOutputStream
+{
+    private Mac m_mac;
+
+    public MacOutputStream(OutputStream stream, Mac mac)
+    {
+        super(stream);
+        m_mac = mac;
+    }
+
+    @Override
+    public void write(int value) throws IOException
+    {
+        m_mac.update((byte)value);
+        out.write(value);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException
+    {
+        m_mac.update(buffer, offset, count);
+        out.write(buffer, offset, count);
+    }
+
+    //the wrapped stream stays open, the trailer still has to follow
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+}
@@ -0,0 +1,362 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+
+/*
+ * Walks the nodes below a folder without recursing and without building lists of them: depth
+ * first (a folder, everything below it, then its next sibling) or breadth first (all children
+ * of a folder before any grandchildren). Within a folder the sub folders come before the notes,
+ * as they are stored. The folder itself is not part of the walk.
+ *
+ * ForEachParallel() hands every node to a Visitor from several threads. The trees are split at
+ * subtree boundaries into pieces of about the same number of nodes, which the folder totals
+ * give without walking: subtrees that are small enough become one piece, larger folders are
+ * split further and their notes are taken in runs. Small trees are walked on the calling thread.
+ *
+ * None of the walks lock anything: the trees must not change while they are in progress.
+ */
+public class NodeTraversal
+{
+    //pieces per thread, more than one so a thread that got a cheap piece can take another
+    private static final int PiecesPerThread = 4;
+    //below this many nodes per piece splitting costs more than it gains
+    private static final int MinPieceSize = 256;
+
+    public interface Visitor
+    {
+        //returns false to stop the walk
+        public abstract Boolean Visit(Node_Common node) throws Exception;
+    }
+
+    public static Iterable<Node_Common> DepthFirst(final Node_Folder folder)
+    {
+        return new Iterable<Node_Common>()
+        {
+            public Iterator<Node_Common> iterator() { return new DepthFirstIterator(folder); }
+        };
+    }
+
+    public static Iterable<Node_Common> BreadthFirst(final Node_Folder folder)
+    {
+        return new Iterable<Node_Common>()
+        {
+            public Iterator<Node_Common> iterator() { return new BreadthFirstIterator(folder); }
+        };
+    }
+
+    public static Boolean ForEach(Node_Folder folder, Visitor visitor) throws Exception
+    {
+        for (Node_Common node : DepthFirst(folder))
+        {
+            if (!visitor.Visit(node))
+                return false;
+        }
+
+        return true;
+    }
+
+    public static Boolean ForEachParallel(Node_Folder folder, Visitor visitor) throws Exception
+    {
+        return ForEachParallel(Collections.singletonList(folder), visitor);
+    }
+
+    //visits the nodes below all the folders, the Visitor is called from several threads at once.
+    //returns false if it stopped the walk
+    public static Boolean ForEachParallel(Collection<Node_Folder> folders, Visitor visitor) throws Exception
+    {
+        long start = Metrics.Start();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long size = 0;
+        for (Node_Folder folder : folders)
+            size += Size(folder) - 1;
+
+        Walk walk = new Walk(visitor);
+        if ((threads < 2) || (size < 2 * MinPieceSize))
+        {
+            for (Node_Folder folder : folders)
+            {
+                if (!walk.VisitBelow(folder))
+                    break;
+            }
+        }
+        else
+        {
+            long pieceSize = Math.max(MinPieceSize, size / (threads * PiecesPerThread));
+
+            ArrayList<Callable<Object>> pieces = new ArrayList<Callable<Object>>();
+            ArrayList<Node_Common> spine = new ArrayList<Node_Common>();
+            for (Node_Folder folder : folders)
+                Split(folder, pieceSize, walk, pieces, spine);
+
+            if (!spine.isEmpty())
+                pieces.add(walk.Piece(spine, 0, spine.size(), false));
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, pieces.size()));
+            try
+            {
+                //rethrows what went wrong in a visit
+                for (Future<Object> result : executor.invokeAll(pieces))
+                    result.get();
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+
+            Metrics.Count("NodeTraversal.Pieces", pieces.size());
+        }
+
+        Metrics.Stop("NodeTraversal.ForEachParallel", start);
+        return !walk.IsStopped();
+    }
+
+    //nodes in the subtree, the folder included
+    private static long Size(Node_Common node)
+    {
+        if (node.NodeType() != Node_Common.Type.Folder)
+            return 1;
+
+        Node_Folder folder = (Node_Folder)node;
+        return 1 + folder.TotalFolders() + folder.TotalNotes();
+    }
+
+    //every sub folder small enough is a piece, larger ones are split themselves and only visited
+    //on their own as part of the spine. the notes of a folder are taken in runs of pieceSize
+    private static void Split(Node_Folder folder, long pieceSize, Walk walk, ArrayList<Callable<Object>> pieces,
+                              ArrayList<Node_Common> spine)
+    {
+        ArrayList<Node_Folder> subFolders = folder.SubFolders();
+        int first = 0;
+        long size = 0;
+        for (int index = 0; index < subFolders.size(); index++)
+        {
+            Node_Folder child = subFolders.get(index);
+            long childSize = Size(child);
+            if (childSize > pieceSize)
+            {
+                //a run of small folders never spans a large one
+                if (size > 0)
+                    pieces.add(walk.Piece(subFolders, first, index, true));
+
+                size = 0;
+                spine.add(child);
+                Split(child, pieceSize, walk, pieces, spine);
+                continue;
+            }
+
+            //neighbouring small folders share a piece
+            if ((size > 0) && (size + childSize > pieceSize))
+            {
+                pieces.add(walk.Piece(subFolders, first, index, true));
+                size = 0;
+            }
+
+            if (size == 0)
+                first = index;
+
+            size += childSize;
+        }
+
+        //the last run of small folders, unless every folder went to the spine
+        if (size > 0)
+            pieces.add(walk.Piece(subFolders, first, subFolders.size(), true));
+
+        ArrayList<Node_Note> subNotes = folder.SubNotes();
+        for (int index = 0; index < subNotes.size(); index += (int)pieceSize)
+            pieces.add(walk.Piece(subNotes, index, (int)Math.min(subNotes.size(), index + pieceSize), false));
+    }
+
+    private static class Walk
+    {
+        private Visitor m_visitor;
+        private volatile boolean m_stopped;
+
+        public Walk(Visitor visitor)
+        {
+            m_visitor = visitor;
+            m_stopped = false;
+        }
+
+        public Boolean IsStopped() { return m_stopped; }
+
+        //nodes first to last of the list, with everything below the folders among them unless
+        //they are on the spine
+        public Callable<Object> Piece(final ArrayList<? extends Node_Common> nodes, final int first, final int last,
+                                      final Boolean subtrees)
+        {
+            return new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    for (int index = first; index < last; index++)
+                    {
+                        Node_Common node = nodes.get(index);
+                        if (!Visit(node))
+                            break;
+
+                        if (subtrees && (node.NodeType() == Node_Common.Type.Folder) && !VisitBelow((Node_Folder)node))
+                            break;
+                    }
+
+                    return null;
+                }
+            };
+        }
+
+        public Boolean VisitBelow(Node_Folder folder) throws Exception
+        {
+            for (Node_Common node : DepthFirst(folder))
+            {
+                if (!Visit(node))
+                    return false;
+            }
+
+            return true;
+        }
+
+        public Boolean Visit(Node_Common node) throws Exception
+        {
+            if (m_stopped)
+                return false;
+
+            if (!m_visitor.Visit(node))
+            {
+                m_stopped = true;
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static class DepthFirstIterator implements Iterator<Node_Common>
+    {
+        //the folders being walked, and for each how many of its children were returned
+        private ArrayList<Node_Folder> m_folders;
+        private int[] m_positions;
+        private Node_Common m_next;
+
+        public DepthFirstIterator(Node_Folder folder)
+        {
+            m_folders = new ArrayList<Node_Folder>();
+            m_positions = new int[16];
+            m_folders.add(folder);
+            m_positions[0] = 0;
+            m_next = Advance();
+        }
+
+        public boolean hasNext() { return (m_next != null); }
+
+        public Node_Common next()
+        {
+            if (m_next == null)
+                throw (new NoSuchElementException());
+
+            Node_Common next = m_next;
+            m_next = Advance();
+            return next;
+        }
+
+        public void remove() { throw (new UnsupportedOperationException()); }
+
+        private Node_Common Advance()
+        {
+            while (!m_folders.isEmpty())
+            {
+                int top = m_folders.size() - 1;
+                Node_Folder folder = m_folders.get(top);
+                int position = m_positions[top]++;
+
+                int folders = folder.SubFolders().size();
+                if (position < folders)
+                {
+                    Node_Folder child = folder.SubFolders().get(position);
+                    if (m_folders.size() == m_positions.length)
+                    {
+                        int[] grown = new int[m_positions.length * 2];
+                        System.arraycopy(m_positions, 0, grown, 0, m_positions.length);
+                        m_positions = grown;
+                    }
+
+                    m_folders.add(child);
+                    m_positions[top + 1] = 0;
+                    return child;
+                }
+
+                if (position - folders < folder.SubNotes().size())
+                    return folder.SubNotes().get(position - folders);
+
+                m_folders.remove(top);
+            }
+
+            return null;
+        }
+    }
+
+    private static class BreadthFirstIterator implements Iterator<Node_Common>
+    {
+        //folders whose children are still to come, the first is being walked
+        private LinkedList<Node_Folder> m_folders;
+        private int m_position;
+        private Node_Common m_next;
+
+        public BreadthFirstIterator(Node_Folder folder)
+        {
+            m_folders = new LinkedList<Node_Folder>();
+            m_folders.add(folder);
+            m_position = 0;
+            m_next = Advance();
+        }
+
+        public boolean hasNext() { return (m_next != null); }
+
+        public Node_Common next()
+        {
+            if (m_next == null)
+                throw (new NoSuchElementException());
+
+            Node_Common next = m_next;
+            m_next = Advance();
+            return next;
+        }
+
+        public void remove() { throw (new UnsupportedOperationException()); }
+
+        private Node_Common Advance()
+        {
+            while (!m_folders.isEmpty())
+            {
+                Node_Folder folder = m_folders.getFirst();
+                int position = m_position++;
+
+                int folders = folder.SubFolders().size();
+                if (position < folders)
+                {
+                    Node_Folder child = folder.SubFolders().get(position);
+                    m_folders.addLast(child);
+                    return child;
+                }
+
+                if (position - folders < folder.SubNotes().size())
+                    return folder.SubNotes().get(position - folders);
+
+                m_folders.removeFirst();
+                m_position = 0;
+            }
+
+            return null;
+        }
+    }
+}
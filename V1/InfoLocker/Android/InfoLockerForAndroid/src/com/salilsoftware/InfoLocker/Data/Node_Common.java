@@ -1,6 +1,9 @@
 package com.salilsoftware.InfoLocker.Data;
 
+import java.security.MessageDigest;
+
 import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+import com.salilsoftware.InfoLocker.Utilities.StringPool;
 import com.salilsoftware.InfoLocker.Utilities.StringUtils;
 import com.salilsoftware.InfoLocker.Utilities.Utils;
 
@@ -8,15 +11,38 @@ public class Node_Common extends NotifyProvider
 {
     public enum Type { Folder, Note, Unknown };
 
-    public Type NodeType() { return m_nodeType; }
-    public Object Icon() { return m_icon; }
+    public Type NodeType() { return Types[m_flags & TypeMask]; }
+
+    //icons are shared by all nodes of a type
+    public Object Icon()
+    {
+        if (!s_iconsLoaded)
+        {
+            s_folderIcon = Utils.GetFolderIcon();
+            s_noteIcon = Utils.GetNoteIcon();
+            s_iconsLoaded = true;
+        }
+
+        if (NodeType() == Type.Folder)
+            return s_folderIcon;
+        else if (NodeType() == Type.Note)
+            return s_noteIcon;
+        else
+            return null;
+    }
 
     public String Name() { return m_name; }
     public void Name(String value)
     {
         if (!StringUtils.IsNullOrEmpty(value) && (!StringUtils.Equals(m_name, value)))
         {
-            m_name = value;
+            UndoLog log = Log();
+            if (log != null)
+                log.RecordName(this, m_name, value);
+
+            StringPool pool = Pool();
+            m_name = (pool != null) ? pool.Intern(value) : value;
+            InvalidateHash();
             NotifyPropertyChanged("Name");
             IsDirty(true);
         }
@@ -30,14 +56,25 @@ public class Node_Common extends NotifyProvider
             m_parent = value;
             NotifyPropertyChanged("Parent");
 
+            //an attached node belongs to the storage of its parent. nothing below it has to
+            //change, which makes moving a subtree independent of its size
             if (m_parent != null)
-                Store(m_parent.Store());
+                m_store = null;
 
             IsDirty(true);
         }
     }
 
-    public StorageFile Store() { return m_store; }
+    //only the root of a tree knows its storage, every other node asks its parent
+    public StorageFile Store()
+    {
+        Node_Common node = this;
+        while ((node.m_store == null) && (node.m_parent != null))
+            node = node.m_parent;
+
+        return node.m_store;
+    }
+
     public void Store(StorageFile value)
     {
         if (m_store != value)
@@ -45,29 +82,35 @@ public class Node_Common extends NotifyProvider
             m_store = value;
             NotifyPropertyChanged("Store");
             IsDirty(true);
-
-            if (NodeType() == Type.Folder)
-            {
-                for (Node_Folder folder : ((Node_Folder)this).SubFolders())
-                    folder.Store(m_store);
-                for (Node_Note note : ((Node_Folder)this).SubNotes())
-                    note.Store(m_store);
-            }
         }
     }
 
-    public Boolean IsDirty() { return m_dirty; }
+    //changes to nodes in a storage are recorded for undo, detached nodes have no log
+    protected UndoLog Log()
+    {
+        StorageFile store = Store();
+        return (store != null) ? store.UndoLog() : null;
+    }
+
+    //names and short contents of nodes in a storage share one instance per value
+    protected StringPool Pool()
+    {
+        StorageFile store = Store();
+        return (store != null) ? store.Strings() : null;
+    }
+
+    public Boolean IsDirty() { return Flag(DirtyFlag); }
     public void IsDirty(Boolean value)
     {
-        if (m_dirty != value)
+        if (Flag(DirtyFlag) != value.booleanValue())
         {
-            m_dirty = value;
+            Flag(DirtyFlag, value);
             NotifyPropertyChanged("IsDirty");
 
             //if this node is dirty, then its parent is also dirty
             //if this node is not dirty then its children are also not dirty
 
-            if (m_dirty)
+            if (value)
             {
                 if (Parent() != null)
                     Parent().IsDirty(true);
@@ -85,30 +128,126 @@ public class Node_Common extends NotifyProvider
         }
     }
 
-    private Type m_nodeType;
-    private Object m_icon;
+    //digest over the name, the content and the digests of the children. it is computed
+    //on demand and cleared up the parent chain whenever something below changes, so two
+    //trees (or subtrees) with the same digest can be treated as equal without walking them
+    public byte[] Hash()
+    {
+        if (m_hash == null)
+        {
+            try
+            {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                ComputeHash(digest);
+                m_hash = digest.digest();
+            }
+            catch (Exception exp)
+            {
+                throw (new RuntimeException("Could not compute hash of '" + Name() + "'", exp));
+            }
+        }
+
+        return m_hash;
+    }
+
+    public Boolean IsSameHash(Node_Common other)
+    {
+        return MessageDigest.isEqual(Hash(), other.Hash());
+    }
+
+    protected void ComputeHash(MessageDigest digest) throws Exception
+    {
+        digest.update((byte)NodeType().ordinal());
+        HashString(digest, Name());
+    }
+
+    protected void CopyHash(Node_Common source)
+    {
+        //only valid for an exact copy of the source
+        m_hash = source.m_hash;
+    }
+
+    protected void InvalidateHash()
+    {
+        //a node without a digest never has an ancestor with one, so the walk can stop early
+        if (m_hash != null)
+        {
+            m_hash = null;
+
+            if (Parent() != null)
+                Parent().InvalidateHash();
+        }
+    }
+
+    protected static void HashString(MessageDigest digest, String value) throws Exception
+    {
+        HashBytes(digest, StringUtils.ToUtf8(value));
+    }
+
+    protected static void HashBytes(MessageDigest digest, byte[] value)
+    {
+        if (value == null)
+        {
+            HashInt(digest, -1);
+        }
+        else
+        {
+            HashInt(digest, value.length);
+            digest.update(value);
+        }
+    }
+
+    protected static void HashInt(MessageDigest digest, int value)
+    {
+        digest.update((byte)(value >>> 24));
+        digest.update((byte)(value >>> 16));
+        digest.update((byte)(value >>> 8));
+        digest.update((byte)value);
+    }
+
+    protected Boolean Flag(int flag) { return ((m_flags & flag) != 0); }
+    protected void Flag(int flag, Boolean value)
+    {
+        if (value)
+            m_flags |= flag;
+        else
+            m_flags &= ~flag;
+    }
+
+    //the node type and all boolean state share one int
+    private static final int TypeMask = 0x3;
+    private static final int DirtyFlag = 0x4;
+    protected static final int KeepSortedFlag = 0x8;
+
+    private static final Type[] Types = Type.values();
+
+    private static Boolean s_iconsLoaded = false;
+    private static Object s_folderIcon = null;
+    private static Object s_noteIcon = null;
+
+    private int m_flags;
     private String m_name;
     private Node_Folder m_parent;
     private StorageFile m_store;
-    private Boolean m_dirty;
+    private byte[] m_hash;
 
     public Node_Common(Type type)
     {
-        m_nodeType = type;
-
-        if (type == Type.Folder)
-            m_icon = Utils.GetFolderIcon();
-        else if (type == Type.Note)
-            m_icon = Utils.GetNoteIcon();
-
+        m_flags = type.ordinal();
         m_name = null;
         m_parent = null;
         m_store = null;
-        m_dirty = false;
+        m_hash = null;
     }
 
     public static int DiffName(Node_Common a, Node_Common b)
     {
+        //nodes without a name sort first
+        if (a.Name() == null)
+            return (b.Name() == null) ? 0 : -1;
+        if (b.Name() == null)
+            return 1;
+
         return a.Name().compareTo(b.Name());
     }
 }
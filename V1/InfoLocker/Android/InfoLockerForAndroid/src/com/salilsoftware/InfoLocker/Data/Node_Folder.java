@@ -1,16 +1,25 @@
 package com.salilsoftware.InfoLocker.Data;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xmlpull.v1.XmlSerializer;
 
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
 import com.salilsoftware.InfoLocker.Utilities.NotifyConsumer;
 import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+import com.salilsoftware.InfoLocker.Utilities.StringPool;
 import com.salilsoftware.InfoLocker.Utilities.StringUtils;
 
 public class Node_Folder extends Node_Common implements NotifyConsumer
@@ -28,117 +37,852 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
         return nodes;
     }
 
-    public LinkedList<Node_Folder> SubFolders() { return m_subFolders; }
-    public LinkedList<Node_Note> SubNotes() { return m_subNotes; }
+    public ArrayList<Node_Folder> SubFolders() { return m_subFolders; }
+    public ArrayList<Node_Note> SubNotes() { return m_subNotes; }
 
-    private LinkedList<Node_Folder> m_subFolders;
-    private LinkedList<Node_Note> m_subNotes;
+    //everything below this folder, walked in place. see NodeTraversal
+    public Iterable<Node_Common> DepthFirst() { return NodeTraversal.DepthFirst(this); }
+    public Iterable<Node_Common> BreadthFirst() { return NodeTraversal.BreadthFirst(this); }
+
+    public Boolean KeepSorted() { return Flag(KeepSortedFlag); }
+    public void KeepSorted(Boolean value)
+    {
+        if (Flag(KeepSortedFlag) != value.booleanValue())
+        {
+            Flag(KeepSortedFlag, value);
+            NotifyPropertyChanged("KeepSorted");
+
+            //the mode is saved with the folder
+            InvalidateHash();
+            IsDirty(true);
+
+            //sort once, from here on every insert and rename keeps the lists in order
+            if (value)
+                SortNodes(0);
+        }
+    }
+
+    private ArrayList<Node_Folder> m_subFolders;
+    private ArrayList<Node_Note> m_subNotes;
+
+    //totals over everything below this folder, kept current by every add, remove and content
+    //change, so that only the folders up the parent chain are touched
+    public int TotalFolders() { return m_totalFolders; }
+    public int TotalNotes() { return m_totalNotes; }
+    public long TotalContentLength() { return m_totalContentLength; }
+
+    private int m_totalFolders;
+    private int m_totalNotes;
+    private long m_totalContentLength;
+
+    //the children as one list, the sub folders first and then the notes. this is the order
+    //Children() pages through and the "Children" notifications count in
+    public int ChildCount() { return m_subFolders.size() + m_subNotes.size(); }
+    public Node_Common ChildAt(int index)
+    {
+        if (index < m_subFolders.size())
+            return m_subFolders.get(index);
+
+        return m_subNotes.get(index - m_subFolders.size());
+    }
+
+    //what the last "Children" notification was about. a list bound to the folder applies it
+    //to the rows it shows instead of binding all children again; Reset means start over
+    public static class ChildrenChange
+    {
+        public enum Kind { Inserted, Removed, Moved, Reset };
+
+        public Kind ChangeKind() { return m_kind; }
+        public int Index() { return m_index; }
+        public int Count() { return m_count; }
+        public int ToIndex() { return m_toIndex; }
+
+        private Kind m_kind;
+        private int m_index;
+        private int m_count;
+        private int m_toIndex;
+
+        public ChildrenChange(Kind kind, int index, int count, int toIndex)
+        {
+            m_kind = kind;
+            m_index = index;
+            m_count = count;
+            m_toIndex = toIndex;
+        }
+    }
+
+    public ChildrenChange LastChange() { return m_lastChange; }
+
+    //a position in the children, just after the last node of a page. it follows that node
+    //when children are added or removed before it, so paging on after a change neither
+    //skips nor repeats anything. if the node itself went away the one before it on the page
+    //is followed instead, and if the whole page went away the next one starts where it was
+    public static class ChildCursor
+    {
+        private List<Node_Common> m_page;
+        private int m_index;
+        private long m_shifts;
+
+        private ChildCursor(List<Node_Common> page, int index, long shifts)
+        {
+            m_page = page;
+            m_index = index;
+            m_shifts = shifts;
+        }
+    }
+
+    public static class ChildPage
+    {
+        public List<Node_Common> Nodes() { return m_nodes; }
+        public ChildCursor Next() { return m_next; }
+        public Boolean IsLast() { return m_isLast; }
+
+        private List<Node_Common> m_nodes;
+        private ChildCursor m_next;
+        private Boolean m_isLast;
+
+        private ChildPage(List<Node_Common> nodes, ChildCursor next, Boolean isLast)
+        {
+            m_nodes = nodes;
+            m_next = next;
+            m_isLast = isLast;
+        }
+    }
+
+    //up to limit children after the cursor, a null cursor starts at the first child. the cost
+    //depends on the page, not on the number of children
+    public ChildPage Children(ChildCursor cursor, int limit)
+    {
+        int start = Locate(cursor);
+        int count = Math.max(0, Math.min(limit, ChildCount() - start));
+
+        ArrayList<Node_Common> nodes = new ArrayList<Node_Common>(count);
+        for (int index = start; index < start + count; index++)
+            nodes.add(ChildAt(index));
+
+        ChildCursor next = cursor;
+        if (count > 0)
+            next = new ChildCursor(nodes, start + count - 1, m_shifts);
+
+        return new ChildPage(nodes, next, (start + count >= ChildCount()));
+    }
+
+    //index of the first child after the cursor's page
+    private int Locate(ChildCursor cursor)
+    {
+        if (cursor == null)
+            return 0;
+
+        int count = ChildCount();
+        long drift = Math.min(m_shifts - cursor.m_shifts, count);
+        int last = cursor.m_page.size() - 1;
+        for (int back = 0; back <= last; back++)
+        {
+            Node_Common node = cursor.m_page.get(last - back);
+            if (node.Parent() == this)
+                return Find(node, cursor.m_index - back, drift) + 1;
+        }
+
+        return Math.max(0, Math.min(cursor.m_index - last, count));
+    }
+
+    //every change moves a child by at most as many places as it added, removed or moved
+    //children, so it is looked for that far around where it was
+    private int Find(Node_Common node, int hint, long drift)
+    {
+        int count = ChildCount();
+        for (int distance = 0; distance <= drift; distance++)
+        {
+            int index = hint - distance;
+            if ((index >= 0) && (index < count) && (ChildAt(index) == node))
+                return index;
+
+            index = hint + distance;
+            if ((distance > 0) && (index >= 0) && (index < count) && (ChildAt(index) == node))
+                return index;
+        }
+
+        //only a node moved by a rename is missed that way
+        if (node.NodeType() == Type.Folder)
+            return m_subFolders.indexOf(node);
+
+        return m_subFolders.size() + m_subNotes.indexOf(node);
+    }
+
+    private ChildrenChange m_lastChange;
+    //how many places children were moved by all changes so far, see Locate()
+    private long m_shifts;
+    //changes are held while AddNodes works through a batch
+    private Boolean m_holdChanges;
+    private Boolean m_missedChanges;
+
+    private void ChildrenChanged(ChildrenChange.Kind kind, int index, int count, int toIndex)
+    {
+        if (kind == ChildrenChange.Kind.Reset)
+            m_shifts += ChildCount();
+        else if (kind == ChildrenChange.Kind.Moved)
+            m_shifts += 1;
+        else
+            m_shifts += count;
+
+        if (m_holdChanges)
+        {
+            m_missedChanges = true;
+            return;
+        }
+
+        m_lastChange = new ChildrenChange(kind, index, count, toIndex);
+        NotifyPropertyChanged("Children");
+    }
+
+    //name lookups of the children, built lazily and dropped whenever they might be stale
+    private HashMap<String, Node_Folder> m_folderIndex;
+    private HashMap<String, Node_Note> m_noteIndex;
+
+    public static final String PathSeparator = "/";
+
+    //more runs than this in one RemoveNodes() are notified as a Reset
+    private static final int MaxRemovedRuns = 16;
     
     public Node_Folder()
     {
     	super(Node_Common.Type.Folder);
-    	m_subFolders = new LinkedList<Node_Folder>();
-    	m_subNotes = new LinkedList<Node_Note>();
+    	m_subFolders = new ArrayList<Node_Folder>();
+    	m_subNotes = new ArrayList<Node_Note>();
+    	m_folderIndex = null;
+    	m_noteIndex = null;
+    	m_totalFolders = 0;
+    	m_totalNotes = 0;
+    	m_totalContentLength = 0;
+    	m_lastChange = null;
+    	m_shifts = 0;
+    	m_holdChanges = false;
+    	m_missedChanges = false;
 
-    	this.Listners.add(this);
+    	this.AddListner(this);
     }
 
-    public Boolean AddNode(Node_Common node)
+    public Node_Folder FindFolder(String name)
+    {
+        if (name == null)
+            return null;
+
+        if (m_folderIndex == null)
+        {
+            m_folderIndex = new HashMap<String, Node_Folder>();
+            for (Node_Folder folder : SubFolders())
+                IndexNode(folder);
+        }
+
+        return m_folderIndex.get(name);
+    }
+
+    public Node_Note FindNote(String name)
     {
+        if (name == null)
+            return null;
+
+        if (m_noteIndex == null)
+        {
+            m_noteIndex = new HashMap<String, Node_Note>();
+            for (Node_Note note : SubNotes())
+                IndexNode(note);
+        }
+
+        return m_noteIndex.get(name);
+    }
+
+    public Node_Common FindNode(String name)
+    {
+        Node_Common node = FindFolder(name);
         if (node == null)
-            return false;
+            node = FindNote(name);
+
+        return node;
+    }
+
+    public Node_Common Resolve(String path)
+    {
+        if (path == null)
+            return null;
 
-        if (SubNodes().contains(node))
+        //empty segments are skipped so that "/a//b/" resolves like "a/b"
+        Node_Common current = this;
+        for (String segment : path.split(PathSeparator))
         {
-            //node already a child of this folder
-            node.Parent(this);
-            return true;
+            if (segment.length() == 0)
+                continue;
+
+            if (current.NodeType() != Type.Folder)
+                return null;
+
+            current = ((Node_Folder)current).FindNode(segment);
+            if (current == null)
+                return null;
         }
 
-        if (node.Parent() == this)
+        return current;
+    }
+
+    private void IndexNode(Node_Common node)
+    {
+        //when several children share a name the one indexed first wins: the first in list
+        //order when the index is built, after that the one added earliest. sorted folders
+        //insert after equal names, so the two only differ for a child put back at an index
+        if (node.Name() == null)
+            return;
+
+        if ((node.NodeType() == Type.Folder) && (m_folderIndex != null))
         {
-            //node is not in this folder's list but for some reason the parent property points to this node.
-            //reset the parent property
-            node.Parent(null);
+            if (!m_folderIndex.containsKey(node.Name()))
+                m_folderIndex.put(node.Name(), (Node_Folder)node);
+        }
+        else if ((node.NodeType() == Type.Note) && (m_noteIndex != null))
+        {
+            if (!m_noteIndex.containsKey(node.Name()))
+                m_noteIndex.put(node.Name(), (Node_Note)node);
         }
+    }
 
-        Boolean success = true;
+    private void UnIndexNode(Node_Common node)
+    {
         if (node.NodeType() == Type.Folder)
         {
-            SubFolders().add((Node_Folder)node);
-            NotifyPropertyChanged("SubFolders");
+            if ((m_folderIndex != null) && (m_folderIndex.get(node.Name()) == node))
+                m_folderIndex = null;
         }
         else if (node.NodeType() == Type.Note)
         {
-            SubNotes().add((Node_Note)node);
-            NotifyPropertyChanged("SubNotes");
+            if ((m_noteIndex != null) && (m_noteIndex.get(node.Name()) == node))
+                m_noteIndex = null;
         }
-        else
+    }
+
+    public Boolean AddNode(Node_Common node)
+    {
+        return InsertNode(node, -1);
+    }
+
+    //adds the node at the given position, or where AddNode would put it for a negative index
+    Boolean InsertNode(Node_Common node, int index)
+    {
+        if (node == null)
+            return false;
+
+        if (node.Parent() == this)
         {
-            success = false;
+            //node already a child of this folder. only then is the list worth scanning
+            if (Contains(node))
+                return true;
+
+            //node is not in this folder's list but for some reason the parent property points to this node.
+            //reset the parent property
+            node.Parent(null);
         }
 
-        if (success)
+        //a move records the removal from the old parent too, both are undone together. from
+        //another storage that is a step shared by both logs
+        UndoLog log = Log();
+        ArrayList<UndoLog> logs = new ArrayList<UndoLog>(2);
+        AddLog(logs, log);
+        if (node.Parent() != null)
+            AddLog(logs, node.Parent().Log());
+
+        UndoLog.Begin(logs);
+
+        try
         {
-            if (node.Parent() != null)
-                node.Parent().RemoveNode(node);
+            Boolean success = true;
+            if (node.NodeType() == Type.Folder)
+            {
+                index = Position(SubFolders(), node, index);
+                SubFolders().add(index, (Node_Folder)node);
+                NotifyPropertyChanged("SubFolders");
+            }
+            else if (node.NodeType() == Type.Note)
+            {
+                index = Position(SubNotes(), node, index);
+                SubNotes().add(index, (Node_Note)node);
+                NotifyPropertyChanged("SubNotes");
+            }
+            else
+            {
+                success = false;
+            }
 
-            node.Parent(this);
-            IsDirty(true);
+            if (success)
+            {
+                if (node.Parent() != null)
+                    node.Parent().RemoveNode(node, true);
+
+                IndexNode(node);
+                InvalidateHash();
+                node.AddListner(this);
+                node.Parent(this);
+                AdjustTotals(new Totals(node, 1));
+                ChildrenChanged(ChildrenChange.Kind.Inserted, ChildIndex(node, index), 1, -1);
+                IsDirty(true);
+
+                if (log != null)
+                    log.RecordAdd(this, node, index);
+            }
+
+            return success;
+        }
+        finally
+        {
+            UndoLog.End(logs);
         }
+    }
 
-        return success;
+    //attaches detached nodes in one go: the lists, the digest and the dirty state are updated
+    //and notified once for all of them instead of once per node. nodes that still have a
+    //parent are moved one by one as AddNode would
+    public Boolean AddNodes(List<? extends Node_Common> nodes)
+    {
+        if ((nodes == null) || nodes.isEmpty())
+            return false;
+
+        UndoLog log = Log();
+        if (log != null)
+            log.Begin();
+
+        try
+        {
+            Boolean folders = false;
+            Boolean notes = false;
+            Boolean success = true;
+            Totals added = new Totals();
+            int oldFolders = m_subFolders.size();
+            int oldNotes = m_subNotes.size();
+
+            //nodes moved in one by one in between would make the ranges below wrong
+            m_holdChanges = true;
+            m_missedChanges = false;
+
+            for (Node_Common node : nodes)
+            {
+                if ((node == null) || (node.Parent() != null))
+                {
+                    success = InsertNode(node, -1) && success;
+                    continue;
+                }
+
+                //sorted lists are sorted once at the end, the undo log inserts sorted as well
+                int index = -1;
+                if (node.NodeType() == Type.Folder)
+                {
+                    if (!KeepSorted())
+                        index = m_subFolders.size();
+                    m_subFolders.add((Node_Folder)node);
+                    folders = true;
+                }
+                else if (node.NodeType() == Type.Note)
+                {
+                    if (!KeepSorted())
+                        index = m_subNotes.size();
+                    m_subNotes.add((Node_Note)node);
+                    notes = true;
+                }
+                else
+                {
+                    success = false;
+                    continue;
+                }
+
+                IndexNode(node);
+                node.AddListner(this);
+                node.Parent(this);
+                added.Add(node, 1);
+
+                if (log != null)
+                    log.RecordAdd(this, node, index);
+            }
+
+            if (KeepSorted())
+            {
+                if (folders)
+                    Collections.sort(m_subFolders, NameComparator);
+                if (notes)
+                    Collections.sort(m_subNotes, NameComparator);
+
+                //the first of several equal names may have changed
+                m_folderIndex = null;
+                m_noteIndex = null;
+            }
+
+            m_holdChanges = false;
+            if (folders || notes || m_missedChanges)
+            {
+                InvalidateHash();
+                AdjustTotals(added);
+
+                if (folders)
+                    NotifyPropertyChanged("SubFolders");
+                if (notes)
+                    NotifyPropertyChanged("SubNotes");
+
+                //appended nodes are two ranges, anything else starts over
+                if (KeepSorted() || m_missedChanges)
+                {
+                    m_missedChanges = false;
+                    ChildrenChanged(ChildrenChange.Kind.Reset, 0, ChildCount(), -1);
+                }
+                else
+                {
+                    if (folders)
+                        ChildrenChanged(ChildrenChange.Kind.Inserted, oldFolders, m_subFolders.size() - oldFolders, -1);
+                    if (notes)
+                        ChildrenChanged(ChildrenChange.Kind.Inserted, m_subFolders.size() + oldNotes,
+                                        m_subNotes.size() - oldNotes, -1);
+                }
+
+                IsDirty(true);
+            }
+
+            return success;
+        }
+        finally
+        {
+            m_holdChanges = false;
+            if (log != null)
+                log.End();
+        }
     }
 
     public Boolean RemoveNode(Node_Common node)
+    {
+        return RemoveNode(node, false);
+    }
+
+    //a node removed to be added elsewhere stays alive anyway, the undo log does not count it
+    private Boolean RemoveNode(Node_Common node, Boolean moving)
     {
         if (node == null)
             return false;
 
-        Boolean success = true;
+        int index = -1;
         if (node.NodeType() == Type.Folder)
         {
-            success = SubFolders().remove((Node_Folder)node);
+            index = SubFolders().indexOf(node);
+            if (index >= 0)
+                SubFolders().remove(index);
             NotifyPropertyChanged("SubFolders");
         }
         else if (node.NodeType() == Type.Note)
         {
-            success = SubNotes().remove((Node_Note)node);
+            index = SubNotes().indexOf(node);
+            if (index >= 0)
+                SubNotes().remove(index);
             NotifyPropertyChanged("SubNotes");
         }
-        else
-        {
-            success = false;
-        }
 
+        Boolean success = (index >= 0);
         if (success)
         {
+            UndoLog log = Log();
+            if (log != null)
+                log.RecordRemove(this, node, index, moving);
+
+            UnIndexNode(node);
+            InvalidateHash();
+            node.RemoveListner(this);
             node.Parent(null);
+            AdjustTotals(new Totals(node, -1));
+            ChildrenChanged(ChildrenChange.Kind.Removed, ChildIndex(node, index), 1, -1);
+            IsDirty(true);
+        }
+
+        return success;
+    }
+
+    //detaches several children in one pass over the lists, notifying once per list
+    public Boolean RemoveNodes(List<? extends Node_Common> nodes)
+    {
+        return RemoveNodes(nodes, false);
+    }
+
+    private Boolean RemoveNodes(List<? extends Node_Common> nodes, Boolean moving)
+    {
+        if ((nodes == null) || nodes.isEmpty())
+            return false;
+
+        IdentityHashMap<Node_Common, Boolean> removed = new IdentityHashMap<Node_Common, Boolean>();
+        for (Node_Common node : nodes)
+        {
+            if ((node != null) && (node.Parent() == this))
+                removed.put(node, Boolean.TRUE);
+        }
+
+        if (removed.isEmpty())
+            return false;
+
+        UndoLog log = Log();
+        if (log != null)
+            log.Begin();
+
+        try
+        {
+            //removed places, highest first. the notes are counted behind all the old folders
+            ArrayList<Integer> places = new ArrayList<Integer>(removed.size());
+            int oldFolders = m_subFolders.size();
+            Boolean notes = RemoveFrom(m_subNotes, oldFolders, removed, log, moving, places);
+            Boolean folders = RemoveFrom(m_subFolders, 0, removed, log, moving, places);
+
+            Totals totals = new Totals();
+            for (Node_Common node : removed.keySet())
+            {
+                node.RemoveListner(this);
+                node.Parent(null);
+                totals.Add(node, -1);
+            }
+
+            InvalidateHash();
+            AdjustTotals(totals);
+
+            if (folders)
+                NotifyPropertyChanged("SubFolders");
+            if (notes)
+                NotifyPropertyChanged("SubNotes");
+
+            RemovedChildren(places);
             IsDirty(true);
+            return (removed.size() == nodes.size());
+        }
+        finally
+        {
+            if (log != null)
+                log.End();
+        }
+    }
+
+    private <T extends Node_Common> Boolean RemoveFrom(ArrayList<T> list, int offset, IdentityHashMap<Node_Common, Boolean> removed,
+                                                    UndoLog log, Boolean moving, ArrayList<Integer> places)
+    {
+        //recorded from the back, so every index is still right when the step is undone in reverse
+        Boolean any = false;
+        for (int index = list.size() - 1; index >= 0; index--)
+        {
+            T node = list.get(index);
+            if (removed.containsKey(node))
+            {
+                if (log != null)
+                    log.RecordRemove(this, node, index, moving);
+
+                UnIndexNode(node);
+                places.add(offset + index);
+                any = true;
+            }
+        }
+
+        if (!any)
+            return false;
+
+        int kept = 0;
+        for (int index = 0; index < list.size(); index++)
+        {
+            T node = list.get(index);
+            if (!removed.containsKey(node))
+                list.set(kept++, node);
+        }
+
+        list.subList(kept, list.size()).clear();
+        return true;
+    }
+
+    //one notification per run of neighbouring places, from the back so every index is right
+    //when the ones before it are applied. scattered removals start over instead
+    private void RemovedChildren(ArrayList<Integer> places)
+    {
+        int runs = 0;
+        for (int index = 0; index < places.size(); index++)
+        {
+            if ((index == 0) || (places.get(index) != places.get(index - 1) - 1))
+                runs++;
+        }
+
+        if (runs > MaxRemovedRuns)
+        {
+            ChildrenChanged(ChildrenChange.Kind.Reset, 0, ChildCount(), -1);
+            return;
+        }
+
+        int first = 0;
+        for (int index = 1; index <= places.size(); index++)
+        {
+            if ((index == places.size()) || (places.get(index) != places.get(index - 1) - 1))
+            {
+                ChildrenChanged(ChildrenChange.Kind.Removed, places.get(index - 1), index - first, -1);
+                first = index;
+            }
+        }
+    }
+
+    //moves nodes from anywhere, other storages included, into this folder. every source folder
+    //and this one change and notify once, and every storage involved records a single undo step.
+    //a folder cannot be moved into itself or below itself
+    public Boolean MoveNodes(List<? extends Node_Common> nodes)
+    {
+        if ((nodes == null) || nodes.isEmpty())
+            return false;
+
+        long start = Metrics.Start();
+        Boolean success = true;
+
+        LinkedHashMap<Node_Folder, ArrayList<Node_Common>> sources = new LinkedHashMap<Node_Folder, ArrayList<Node_Common>>();
+        ArrayList<Node_Common> moved = new ArrayList<Node_Common>(nodes.size());
+        for (Node_Common node : nodes)
+        {
+            if ((node == null) || (node.Parent() == this))
+                continue;
+
+            if ((node.NodeType() == Type.Folder) && ((Node_Folder)node).IsAncestorOf(this))
+            {
+                success = false;
+                continue;
+            }
+
+            if (node.Parent() != null)
+            {
+                ArrayList<Node_Common> group = sources.get(node.Parent());
+                if (group == null)
+                {
+                    group = new ArrayList<Node_Common>();
+                    sources.put(node.Parent(), group);
+                }
+
+                group.add(node);
+            }
+
+            moved.add(node);
+        }
+
+        if (moved.isEmpty())
+            return success;
+
+        ArrayList<UndoLog> logs = new ArrayList<UndoLog>();
+        AddLog(logs, Log());
+        for (Node_Folder source : sources.keySet())
+            AddLog(logs, source.Log());
+
+        //one step shared by all the logs, undone in any of them it puts every node back
+        UndoLog.Begin(logs);
+
+        try
+        {
+            for (Map.Entry<Node_Folder, ArrayList<Node_Common>> source : sources.entrySet())
+                source.getKey().RemoveNodes(source.getValue(), true);
+
+            success = AddNodes(moved) && success;
+        }
+        finally
+        {
+            UndoLog.End(logs);
         }
 
+        Metrics.Stop("Node_Folder.MoveNodes", start);
+        Metrics.Count("Node_Folder.Moved", moved.size());
         return success;
     }
 
+    private static void AddLog(ArrayList<UndoLog> logs, UndoLog log)
+    {
+        if ((log != null) && !logs.contains(log))
+            logs.add(log);
+    }
+
+    //what a change adds to or removes from the totals of every folder above it
+    static class Totals
+    {
+        public int Folders = 0;
+        public int Notes = 0;
+        public long ContentLength = 0;
+
+        public Totals()
+        {
+        }
+
+        public Totals(Node_Common node, int sign)
+        {
+            Add(node, sign);
+        }
+
+        public void Add(Node_Common node, int sign)
+        {
+            if (node.NodeType() == Type.Folder)
+            {
+                Node_Folder folder = (Node_Folder)node;
+                Folders += sign * (1 + folder.TotalFolders());
+                Notes += sign * folder.TotalNotes();
+                ContentLength += sign * folder.TotalContentLength();
+            }
+            else if (node.NodeType() == Type.Note)
+            {
+                Notes += sign;
+                ContentLength += sign * (long)((Node_Note)node).ContentLength();
+            }
+        }
+    }
+
+    void AdjustTotals(Totals totals)
+    {
+        if ((totals.Folders == 0) && (totals.Notes == 0) && (totals.ContentLength == 0))
+            return;
+
+        for (Node_Folder folder = this; folder != null; folder = folder.Parent())
+        {
+            folder.m_totalFolders += totals.Folders;
+            folder.m_totalNotes += totals.Notes;
+            folder.m_totalContentLength += totals.ContentLength;
+            folder.NotifyPropertyChanged("Totals");
+        }
+    }
+
+    //whether node is this folder or somewhere below it, walks up from node
+    public Boolean IsAncestorOf(Node_Common node)
+    {
+        for (Node_Common current = node; current != null; current = current.Parent())
+        {
+            if (current == this)
+                return true;
+        }
+
+        return false;
+    }
+
     public Boolean SortNodes(int level)
     {
         try
         {
-        	Comparator<Node_Common> nodeCompare = new Comparator<Node_Common>()
-        	{
-				public int compare(Node_Common object1, Node_Common object2)
-				{
-					return Node_Common.DiffName(object1, object2);
-				}
-			};
+            //only touch the lists that are actually out of order so that sorting
+            //an already sorted folder neither notifies nor dirties it
+            ArrayList<Node_Folder> folders = null;
+            ArrayList<Node_Note> notes = null;
 
-			Collections.sort(m_subFolders, nodeCompare);
-            NotifyPropertyChanged("SubFolders");
+            if (!IsSorted(m_subFolders))
+            {
+                folders = new ArrayList<Node_Folder>(m_subFolders);
+                Collections.sort(m_subFolders, NameComparator);
+                NotifyPropertyChanged("SubFolders");
+            }
 
-			Collections.sort(m_subNotes, nodeCompare);
-            NotifyPropertyChanged("SubNotes");
+            if (!IsSorted(m_subNotes))
+            {
+                notes = new ArrayList<Node_Note>(m_subNotes);
+                Collections.sort(m_subNotes, NameComparator);
+                NotifyPropertyChanged("SubNotes");
+            }
 
-            this.IsDirty(true);
+            if ((folders != null) || (notes != null))
+            {
+                UndoLog log = Log();
+                if (log != null)
+                    log.RecordSort(this, folders, notes);
+
+                InvalidateHash();
+                ChildrenChanged(ChildrenChange.Kind.Reset, 0, ChildCount(), -1);
+                this.IsDirty(true);
+            }
         }
         catch (Exception exp)
         {
@@ -158,6 +902,132 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
         return success;
     }
 
+    private static final Comparator<Node_Common> NameComparator = new Comparator<Node_Common>()
+    {
+        public int compare(Node_Common object1, Node_Common object2)
+        {
+            return Node_Common.DiffName(object1, object2);
+        }
+    };
+
+    private static Boolean IsSorted(List<? extends Node_Common> list)
+    {
+        int index = 1;
+        while (index < list.size())
+        {
+            if (Node_Common.DiffName(list.get(index - 1), list.get(index)) > 0)
+                return false;
+
+            index++;
+        }
+
+        return true;
+    }
+
+    private int InsertionIndex(List<? extends Node_Common> list, Node_Common node)
+    {
+        if (!KeepSorted())
+            return list.size();
+
+        //binary search for the slot after the last node with an equal or smaller name,
+        //so nodes with equal names keep their insertion order
+        int low = 0;
+        int high = list.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (Node_Common.DiffName(list.get(mid), node) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    private Boolean Contains(Node_Common node)
+    {
+        if (node.NodeType() == Type.Folder)
+            return m_subFolders.contains(node);
+        else
+            return m_subNotes.contains(node);
+    }
+
+    //where a child at index of its own list is among all the children
+    private int ChildIndex(Node_Common node, int index)
+    {
+        return (node.NodeType() == Type.Folder) ? index : m_subFolders.size() + index;
+    }
+
+    private int Position(List<? extends Node_Common> list, Node_Common node, int index)
+    {
+        if (index < 0)
+            return InsertionIndex(list, node);
+
+        return Math.min(index, list.size());
+    }
+
+    //puts the children back in an earlier order, null leaves that list as it is
+    void Reorder(ArrayList<Node_Folder> folders, ArrayList<Node_Note> notes)
+    {
+        if (folders != null)
+        {
+            m_subFolders.clear();
+            m_subFolders.addAll(folders);
+            NotifyPropertyChanged("SubFolders");
+        }
+
+        if (notes != null)
+        {
+            m_subNotes.clear();
+            m_subNotes.addAll(notes);
+            NotifyPropertyChanged("SubNotes");
+        }
+
+        //equal names resolve to the first in list order, which may have changed
+        m_folderIndex = null;
+        m_noteIndex = null;
+
+        InvalidateHash();
+        ChildrenChanged(ChildrenChange.Kind.Reset, 0, ChildCount(), -1);
+        IsDirty(true);
+    }
+
+    private <T extends Node_Common> Boolean Reposition(ArrayList<T> list, T node)
+    {
+        int oldIndex = list.indexOf(node);
+        if (oldIndex < 0)
+            return false;
+
+        list.remove(oldIndex);
+        int newIndex = InsertionIndex(list, node);
+        list.add(newIndex, node);
+
+        if (newIndex == oldIndex)
+            return false;
+
+        InvalidateHash();
+        ChildrenChanged(ChildrenChange.Kind.Moved, ChildIndex(node, oldIndex), 1, ChildIndex(node, newIndex));
+        return true;
+    }
+
+    public Node_Folder Clone()
+    {
+        Node_Folder copy = new Node_Folder();
+        copy.Name(Name());
+        copy.Flag(KeepSortedFlag, KeepSorted());
+
+        for (Node_Folder folder : SubFolders())
+            copy.AddNode(folder.Clone());
+
+        for (Node_Note note : SubNotes())
+            copy.AddNode(note.Clone());
+
+        copy.CopyHash(this);
+        copy.IsDirty(false);
+        return copy;
+    }
+
     public void Serialize(XmlSerializer writer, String password) throws Exception
     {
     	writer.startTag(null, "Folder");
@@ -167,6 +1037,10 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
         if(!StringUtils.IsNullOrEmpty(password))
         	writer.attribute(null, "Password", password);
 
+        //left out when off, so files of unsorted folders read as before
+        if (KeepSorted())
+            writer.attribute(null, "KeepSorted", "true");
+
         for (Node_Folder folder : SubFolders())
         {
             try
@@ -195,6 +1069,11 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
     }
 
     public String DeSerialize(Node reader) throws Exception
+    {
+        return DeSerialize(reader, null);
+    }
+
+    public String DeSerialize(Node reader, StringPool pool) throws Exception
     {
     	NamedNodeMap attr = reader.getAttributes();
 
@@ -206,7 +1085,7 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
     	if (name == null)
 		    throw (new Exception("Error reading name of note"));
 
-	    Name(name);
+	    Name((pool != null) ? pool.Intern(name) : name);
     	
         //used only by the root node
 	    Node passwordNode = attr.getNamedItem("Password"); 
@@ -214,6 +1093,12 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
         if (passwordNode != null)
         	password = passwordNode.getNodeValue();
 
+        //set before the children are added, the saved order is already sorted so each one
+        //goes to the end
+        Node sortedNode = attr.getNamedItem("KeepSorted");
+        if (sortedNode != null)
+            Flag(KeepSortedFlag, StringUtils.Equals(sortedNode.getNodeValue(), "true"));
+
         NodeList children = reader.getChildNodes();
         int index = 0;
         while (index < children.getLength())
@@ -225,7 +1110,7 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
 
                 try
                 {
-                    newfolder.DeSerialize(child);
+                    newfolder.DeSerialize(child, pool);
                 }
                 catch (Exception exp)
                 {
@@ -240,7 +1125,7 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
 
                 try
                 {
-                    newnote.DeSerialize(child);
+                    newnote.DeSerialize(child, pool);
                 }
                 catch (Exception exp)
                 {
@@ -253,46 +1138,73 @@ public class Node_Folder extends Node_Common implements NotifyConsumer
         	index++;
         }
 
+        //loaded folders rarely grow much, drop the spare capacity
+        m_subFolders.trimToSize();
+        m_subNotes.trimToSize();
+
         IsDirty(false);
         return password;
     }
 
     public Boolean IsEqual(Node_Folder other)
     {
-        if (!StringUtils.Equals(this.Name(), other.Name()) ||
-            (this.SubFolders().size() != other.SubFolders().size()) ||
-            (this.SubNotes().size() != other.SubNotes().size()))
-        {
-            return false;
-        }
-
-        int index = 0;
-        while (index < this.SubFolders().size())
-        {
-            if (!this.SubFolders().get(index).IsEqual(other.SubFolders().get(index)))
-                return false;
+        return IsSameHash(other);
+    }
 
-            index++;
-        }
+    @Override
+    protected void ComputeHash(MessageDigest digest) throws Exception
+    {
+        super.ComputeHash(digest);
 
-        index = 0;
-        while (index < this.SubNotes().size())
-        {
-            if (!this.SubNotes().get(index).IsEqual(other.SubNotes().get(index)))
-                return false;
+        HashInt(digest, SubFolders().size());
+        for (Node_Folder folder : SubFolders())
+            digest.update(folder.Hash());
 
-            index++;
-        }
+        HashInt(digest, SubNotes().size());
+        for (Node_Note note : SubNotes())
+            digest.update(note.Hash());
 
-        return true;
+        //only added when set, so the hashes of unsorted folders stay as they were
+        if (KeepSorted())
+            HashInt(digest, 1);
     }
 
 	public void HandlePropertyChange(NotifyProvider source, String propName)
 	{
-		if (StringUtils.Equals(propName, "SubFolders") ||
-			StringUtils.Equals(propName, "SubNotes"))
+		if (source == this)
+		{
+			if (StringUtils.Equals(propName, "SubFolders") ||
+				StringUtils.Equals(propName, "SubNotes"))
+			{
+				NotifyPropertyChanged("SubNodes");
+				NotifyPropertyChanged("Paths");
+			}
+		}
+		else if ((source instanceof Node_Common) && (((Node_Common)source).Parent() == this))
 		{
-			NotifyPropertyChanged("SubNodes");
+			//a child was renamed or a path below it changed, so the lookups
+			//and any cached paths going through this folder are stale
+			if (StringUtils.Equals(propName, "Name"))
+			{
+				if (((Node_Common)source).NodeType() == Type.Folder)
+				{
+					m_folderIndex = null;
+					if (KeepSorted() && Reposition(m_subFolders, (Node_Folder)source))
+						NotifyPropertyChanged("SubFolders");
+				}
+				else
+				{
+					m_noteIndex = null;
+					if (KeepSorted() && Reposition(m_subNotes, (Node_Note)source))
+						NotifyPropertyChanged("SubNotes");
+				}
+
+				NotifyPropertyChanged("Paths");
+			}
+			else if (StringUtils.Equals(propName, "Paths"))
+			{
+				NotifyPropertyChanged("Paths");
+			}
 		}
 	}
 }
@@ -1,41 +1,185 @@
 package com.salilsoftware.InfoLocker.Data;
 
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.xmlpull.v1.XmlSerializer;
 
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.StringPool;
 import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+import com.salilsoftware.InfoLocker.Utilities.Utf8XmlSerializer;
 
 public class Node_Note extends Node_Common
 {
-    public String Content() { return m_content; }
+    //the content is kept as utf-8, half the size of a String for mostly ascii text.
+    //a String is only built when someone asks for it and is not kept
+    public String Content() { return StringUtils.FromUtf8(ContentBytes()); }
     public void Content(String value)
     {
-        if (!StringUtils.Equals(m_content, value))
+        ContentBytes(StringUtils.ToUtf8(value));
+    }
+
+    //the returned array is shared and must not be modified. reading the content never
+    //changes the note, so notes can be read from several threads while nothing edits them
+    public byte[] ContentBytes()
+    {
+        PieceTable pieces = m_pieces;
+        if (pieces == null)
+            return m_content;
+
+        byte[] joined = m_joined;
+        if (joined == null)
+        {
+            //two threads may both join the pieces, either copy will do
+            long start = Metrics.Start();
+            joined = pieces.ToBytes();
+            m_joined = joined;
+            Metrics.Stop("Node_Note.Materialize", start);
+        }
+
+        return joined;
+    }
+
+    public void ContentBytes(byte[] value)
+    {
+        byte[] oldContent = ContentBytes();
+        if (!Arrays.equals(oldContent, value))
         {
-            m_content = value;
+            int oldLength = ContentLength();
+            StringPool pool = Pool();
+            m_content = (pool != null) ? pool.Intern(value) : value;
+            m_pieces = null;
+            m_joined = null;
+
+            UndoLog log = Log();
+            if (log != null)
+                log.RecordContent(this, oldContent, m_content);
+
+            InvalidateHash();
+            AdjustTotals(ContentLength() - oldLength);
             NotifyPropertyChanged("Content");
             IsDirty(true);
         }
     }
 
-    private String m_content;
+    public int ContentLength()
+    {
+        if (m_pieces != null)
+            return m_pieces.ByteLength();
+
+        return (m_content == null) ? 0 : m_content.length;
+    }
+
+    //an edit at offset, in chars, that replaced the text Removed() by the text Inserted()
+    public static class ContentEdit
+    {
+        public int Offset() { return m_offset; }
+        public String Removed() { return m_removed; }
+        public String Inserted() { return m_inserted; }
+
+        private int m_offset;
+        private String m_removed;
+        private String m_inserted;
+
+        public ContentEdit(int offset, String removed, String inserted)
+        {
+            m_offset = offset;
+            m_removed = removed;
+            m_inserted = inserted;
+        }
+    }
+
+    //the edit the last "ContentEdit" notification was about
+    public ContentEdit LastEdit() { return m_lastEdit; }
+
+    //replaces deleteLength chars at offset with insert. the content is kept in pieces from the
+    //first edit on, so an edit never copies or compares the whole note, and listeners are
+    //told about the edit with "ContentEdit" instead of "Content"
+    public void ApplyEdit(int offset, int deleteLength, String insert) throws Exception
+    {
+        if (insert == null)
+            insert = "";
+
+        if ((deleteLength <= 0) && (insert.length() == 0))
+            return;
+
+        if (m_pieces == null)
+            m_pieces = new PieceTable(m_content);
+
+        int oldLength = m_pieces.ByteLength();
+        String removed = m_pieces.Edit(offset, deleteLength, insert);
+        if ((removed.length() == 0) && (insert.length() == 0))
+            return;
+
+        UndoLog log = Log();
+        if (log != null)
+            log.RecordEdit(this, offset, removed, insert);
+
+        m_joined = null;
+        m_lastEdit = new ContentEdit(offset, removed, insert);
+        InvalidateHash();
+        AdjustTotals(m_pieces.ByteLength() - oldLength);
+        NotifyPropertyChanged("ContentEdit");
+        IsDirty(true);
+    }
+
+    private void AdjustTotals(long contentLength)
+    {
+        if (Parent() == null)
+            return;
+
+        Node_Folder.Totals totals = new Node_Folder.Totals();
+        totals.ContentLength = contentLength;
+        Parent().AdjustTotals(totals);
+    }
+
+    private byte[] m_content;
+
+    //the content once it was edited, null until then. it is kept for the next edits, reading
+    //the content joins the pieces into m_joined, which the next edit drops
+    private volatile PieceTable m_pieces;
+    private volatile byte[] m_joined;
+    private ContentEdit m_lastEdit;
 
     public Node_Note()
     {
     	super(Node_Common.Type.Note);
         m_content = null;
+        m_pieces = null;
+        m_joined = null;
+        m_lastEdit = null;
+    }
+
+    public Node_Note Clone()
+    {
+        Node_Note copy = new Node_Note();
+        copy.Name(Name());
+        copy.m_content = ContentBytes();
+        copy.CopyHash(this);
+        copy.IsDirty(false);
+        return copy;
     }
 
     public void Serialize(XmlSerializer writer) throws Exception
     {
     	writer.startTag(null, "Note");
     	writer.attribute(null, "Name", Name());
-    	writer.attribute(null, "Content", Content());
+    	if (writer instanceof Utf8XmlSerializer)
+    		((Utf8XmlSerializer)writer).AttributeBytes("Content", ContentBytes());
+    	else
+    		writer.attribute(null, "Content", Content());
     	writer.endTag(null, "Note");
     }
 
     public void DeSerialize(Node reader) throws Exception
+    {
+        DeSerialize(reader, null);
+    }
+
+    public void DeSerialize(Node reader, StringPool pool) throws Exception
     {
     	NamedNodeMap attr = reader.getAttributes();
 
@@ -47,7 +191,7 @@ public class Node_Note extends Node_Common
     	if (name == null)
 		    throw (new Exception("Error reading name of note"));
 
-	    Name(name);
+	    Name((pool != null) ? pool.Intern(name) : name);
     	
         //used only by the root node
 	    Node contentNode = attr.getNamedItem("Content"); 
@@ -55,7 +199,10 @@ public class Node_Note extends Node_Common
         {
         	String content = contentNode.getNodeValue();
             if (content != null)
-                Content(content);
+            {
+                byte[] bytes = StringUtils.ToUtf8(content);
+                ContentBytes((pool != null) ? pool.Intern(bytes) : bytes);
+            }
         }
     	
         IsDirty(false);
@@ -63,12 +210,13 @@ public class Node_Note extends Node_Common
 
     public Boolean IsEqual(Node_Note other)
     {
-        if (!StringUtils.Equals(this.Name(), other.Name()) ||
-            !StringUtils.Equals(this.Content(), other.Content()))
-        {
-            return false;
-        }
+        return IsSameHash(other);
+    }
 
-        return true;
+    @Override
+    protected void ComputeHash(MessageDigest digest) throws Exception
+    {
+        super.ComputeHash(digest);
+        HashBytes(digest, ContentBytes());
     }
 }
@@ -0,0 +1,307 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+
+/*
+ * The content of a note while it is being edited: the utf-8 content it started with plus an
+ * append only buffer of everything inserted since, and a list of pieces of the two that make
+ * up the current text. An edit splits at most two pieces and adds one, so its cost depends on
+ * the number of pieces and the size of the edit, not on the length of the text. Typing at the
+ * same place keeps growing the last piece instead of adding new ones.
+ *
+ * Offsets are in chars, as an editor counts them. Each buffer remembers where every
+ * CheckpointInterval'th char starts, so finding the byte a char starts at never scans more
+ * than that many chars. Once there are more than MaxPieces pieces they are copied into one.
+ * An edit may not start or end between the two chars of a surrogate pair.
+ */
+class PieceTable
+{
+    private static final int CheckpointInterval = 256;
+    private static final int MaxPieces = 4096;
+
+    private static class Buffer
+    {
+        public byte[] Bytes;
+        public int Length;
+        public int Chars;
+
+        //byte offset and char index of the first char at or after every CheckpointInterval'th char
+        private int[] m_checkBytes;
+        private int[] m_checkChars;
+        private int m_checks;
+
+        //the content a note started with is used in place, it is never appended to
+        public Buffer(byte[] bytes, int capacity)
+        {
+            if (capacity > bytes.length)
+            {
+                Bytes = new byte[capacity];
+                System.arraycopy(bytes, 0, Bytes, 0, bytes.length);
+            }
+            else
+            {
+                Bytes = bytes;
+            }
+
+            Length = 0;
+            Chars = 0;
+            m_checkBytes = new int[16];
+            m_checkChars = new int[16];
+            m_checks = 0;
+            Index(bytes.length);
+        }
+
+        public void Append(byte[] bytes)
+        {
+            if (Length + bytes.length > Bytes.length)
+            {
+                byte[] grown = new byte[Math.max(Bytes.length * 2, Length + bytes.length)];
+                System.arraycopy(Bytes, 0, grown, 0, Length);
+                Bytes = grown;
+            }
+
+            System.arraycopy(bytes, 0, Bytes, Length, bytes.length);
+            Index(Length + bytes.length);
+        }
+
+        private void Index(int end)
+        {
+            while (Length < end)
+            {
+                if (Chars >= m_checks * CheckpointInterval)
+                {
+                    if (m_checks == m_checkBytes.length)
+                    {
+                        m_checkBytes = Grow(m_checkBytes);
+                        m_checkChars = Grow(m_checkChars);
+                    }
+
+                    m_checkBytes[m_checks] = Length;
+                    m_checkChars[m_checks] = Chars;
+                    m_checks++;
+                }
+
+                int length = SequenceLength(Bytes[Length]);
+                Chars += (length == 4) ? 2 : 1;
+                Length = Math.min(end, Length + length);
+            }
+        }
+
+        //offset of the byte the char starts at, the end of a surrogate pair rounds up to after it
+        public int ByteOffset(int charIndex)
+        {
+            int check = Math.min(charIndex / CheckpointInterval, m_checks - 1);
+            if (check < 0)
+                return 0;
+
+            while ((check > 0) && (m_checkChars[check] > charIndex))
+                check--;
+
+            int offset = m_checkBytes[check];
+            int chars = m_checkChars[check];
+            while ((chars < charIndex) && (offset < Length))
+            {
+                int length = SequenceLength(Bytes[offset]);
+                chars += (length == 4) ? 2 : 1;
+                offset += length;
+            }
+
+            return Math.min(offset, Length);
+        }
+
+        private static int[] Grow(int[] array)
+        {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static int SequenceLength(byte lead)
+        {
+            if ((lead & 0x80) == 0)
+                return 1;
+            else if ((lead & 0xE0) == 0xC0)
+                return 2;
+            else if ((lead & 0xF0) == 0xE0)
+                return 3;
+            else if ((lead & 0xF8) == 0xF0)
+                return 4;
+
+            //a continuation byte where a char should start, counted on its own
+            return 1;
+        }
+    }
+
+    private static class Piece
+    {
+        public Buffer Source;
+        public int Start;
+        public int Chars;
+        public int ByteStart;
+        public int Bytes;
+
+        public Piece(Buffer source, int start, int chars)
+        {
+            Source = source;
+            Start = start;
+            Chars = chars;
+            ByteStart = source.ByteOffset(start);
+            Bytes = source.ByteOffset(start + chars) - ByteStart;
+        }
+    }
+
+    private Buffer m_original;
+    private Buffer m_added;
+    private ArrayList<Piece> m_pieces;
+    private int m_chars;
+    private int m_bytes;
+
+    public PieceTable(byte[] content)
+    {
+        Reset((content != null) ? content : new byte[0]);
+    }
+
+    private void Reset(byte[] content)
+    {
+        m_original = new Buffer(content, content.length);
+        m_added = new Buffer(new byte[0], 256);
+        m_pieces = new ArrayList<Piece>();
+        if (m_original.Chars > 0)
+            m_pieces.add(new Piece(m_original, 0, m_original.Chars));
+
+        m_chars = m_original.Chars;
+        m_bytes = m_original.Length;
+    }
+
+    public int Length() { return m_chars; }
+    public int ByteLength() { return m_bytes; }
+    public int PieceCount() { return m_pieces.size(); }
+
+    //replaces deleteLength chars at offset with insert, returns the text that was replaced
+    public String Edit(int offset, int deleteLength, String insert) throws Exception
+    {
+        if ((offset < 0) || (offset > m_chars) || (deleteLength < 0))
+            throw (new Exception("Edit out of range"));
+
+        deleteLength = Math.min(deleteLength, m_chars - offset);
+
+        //the two halves of a pair are one utf-8 sequence, which cannot be split
+        if (InsidePair(offset) || InsidePair(offset + deleteLength))
+            throw (new Exception("Edit splits a surrogate pair"));
+
+        int first = Split(offset);
+        int last = Split(offset + deleteLength);
+
+        byte[] removed = new byte[0];
+        if (last > first)
+        {
+            int length = 0;
+            for (int index = first; index < last; index++)
+                length += m_pieces.get(index).Bytes;
+
+            removed = new byte[length];
+            int position = 0;
+            for (int index = first; index < last; index++)
+            {
+                Piece piece = m_pieces.get(index);
+                System.arraycopy(piece.Source.Bytes, piece.ByteStart, removed, position, piece.Bytes);
+                position += piece.Bytes;
+            }
+
+            m_pieces.subList(first, last).clear();
+            m_chars -= deleteLength;
+            m_bytes -= length;
+        }
+
+        if ((insert != null) && (insert.length() > 0))
+        {
+            byte[] bytes = StringUtils.ToUtf8(insert);
+            int start = m_added.Chars;
+            m_added.Append(bytes);
+            int chars = m_added.Chars - start;
+
+            //typing right after the previous insert only grows its piece
+            Piece previous = (first > 0) ? m_pieces.get(first - 1) : null;
+            if ((previous != null) && (previous.Source == m_added) && (previous.Start + previous.Chars == start))
+            {
+                previous.Chars += chars;
+                previous.Bytes += bytes.length;
+            }
+            else
+            {
+                m_pieces.add(first, new Piece(m_added, start, chars));
+            }
+
+            m_chars += chars;
+            m_bytes += bytes.length;
+        }
+
+        if (m_pieces.size() > MaxPieces)
+            Reset(ToBytes());
+
+        return StringUtils.FromUtf8(removed);
+    }
+
+    //whether offset is between the high and the low half of a surrogate pair
+    private Boolean InsidePair(int offset)
+    {
+        int position = 0;
+        for (Piece piece : m_pieces)
+        {
+            if (offset <= position)
+                return false;
+
+            if (offset < position + piece.Chars)
+            {
+                //the second half starts where the pair ends, like the char after it
+                int index = piece.Start + offset - position;
+                return (piece.Source.ByteOffset(index) == piece.Source.ByteOffset(index + 1));
+            }
+
+            position += piece.Chars;
+        }
+
+        return false;
+    }
+
+    //index of the piece starting at offset, splitting the piece offset falls into
+    private int Split(int offset)
+    {
+        int position = 0;
+        for (int index = 0; index < m_pieces.size(); index++)
+        {
+            Piece piece = m_pieces.get(index);
+            if (position == offset)
+                return index;
+
+            if (offset < position + piece.Chars)
+            {
+                int split = offset - position;
+                Piece tail = new Piece(piece.Source, piece.Start + split, piece.Chars - split);
+                piece.Chars = split;
+                piece.Bytes = tail.ByteStart - piece.ByteStart;
+                m_pieces.add(index + 1, tail);
+                return index + 1;
+            }
+
+            position += piece.Chars;
+        }
+
+        return m_pieces.size();
+    }
+
+    public byte[] ToBytes()
+    {
+        byte[] bytes = new byte[m_bytes];
+        int position = 0;
+        for (Piece piece : m_pieces)
+        {
+            System.arraycopy(piece.Source.Bytes, piece.ByteStart, bytes, position, piece.Bytes);
+            position += piece.Bytes;
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,305 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+
+/*
+ * Backups of storage files that never decrypt them. The file is copied channel to channel and
+ * checked with its header: the layout has to be complete and, when the key is at hand, the mac
+ * has to match. Without the key only the structure can be checked.
+ *
+ * Every save encrypts the whole file again with a fresh iv, so no part of two saves is ever
+ * the same and backups cannot be incremental below the file. Instead a backup is skipped when
+ * the destination already holds the same save: same size and time, and for files with a
+ * header the same header, whose iv is different for every save. Older files without an iv per
+ * save are compared byte for byte.
+ */
+public class StorageBackup
+{
+    private static final int BufferSize = 64 * 1024;
+
+    //returns false when the destination already held this save and nothing was copied
+    public static Boolean Backup(String source, String destination, StorageHeader key) throws Exception
+    {
+        if (IsSameSave(source, destination))
+        {
+            Metrics.Count("StorageBackup.Skipped");
+            return false;
+        }
+
+        //the source was saved with the key, so both copies have to be sealed with it
+        Verify(source, key, true);
+        Copy(source, destination);
+        Verify(destination, key, true);
+        return true;
+    }
+
+    public static void Restore(String backup, String destination, StorageHeader key) throws Exception
+    {
+        Verify(backup, key);
+        Copy(backup, destination);
+    }
+
+    public static void Verify(String filename, StorageHeader key) throws Exception
+    {
+        Verify(filename, key, false);
+    }
+
+    //a header whose salt or verifier does not fit the key is taken to be of another password,
+    //unless the file must have been sealed with the key
+    private static void Verify(String filename, StorageHeader key, Boolean ownKey) throws Exception
+    {
+        long start = Metrics.Start();
+        File file = new File(filename);
+        if (!file.isFile() || (file.length() == 0))
+            throw (new Exception("Backup of '" + filename + "' is missing"));
+
+        //files from before the header have nothing to check
+        StorageHeader header = StorageHeader.Read(filename);
+        if (header == null)
+            return;
+
+        long cipherLength = file.length() - header.Length() - header.TrailerLength();
+        if ((cipherLength <= 0) || ((cipherLength % 16) != 0))
+            throw (new Exception("Storage file '" + filename + "' is damaged"));
+
+        if ((header.TrailerLength() > 0) && (key != null) && (key.Key() != null))
+        {
+            //the mac of version 4 files covers the header, so a damaged iv or iteration
+            //count is caught there
+            if (header.Accepts(key.Key()))
+            {
+                if (!VerifyMac(file, key, header, cipherLength))
+                    throw (new Exception("Storage file '" + filename + "' is damaged"));
+            }
+            else if (ownKey)
+            {
+                throw (new Exception("Storage file '" + filename + "' is damaged"));
+            }
+        }
+
+        Metrics.Stop("StorageBackup.Verify", start);
+    }
+
+    public static Boolean IsSameSave(String first, String second)
+    {
+        try
+        {
+            File firstFile = new File(first);
+            File secondFile = new File(second);
+
+            if (!firstFile.isFile() || !secondFile.isFile() ||
+                (firstFile.length() != secondFile.length()) ||
+                (firstFile.lastModified() != secondFile.lastModified()))
+                return false;
+
+            //without a fresh iv per save a change can keep the size, and a coarse clock (FAT
+            //keeps 2 seconds) the time, so only the contents tell
+            StorageHeader header = StorageHeader.Read(first);
+            if ((header == null) || (header.FormatVersion() < 2))
+                return SameContents(firstFile, secondFile);
+
+            return MessageDigest.isEqual(ReadHead(firstFile, header.Length()), ReadHead(secondFile, header.Length()));
+        }
+        catch (Exception exp)
+        {
+            return false;
+        }
+    }
+
+    private static void Copy(String source, String destination) throws Exception
+    {
+        long start = Metrics.Start();
+
+        //a copy only gets the real name once it is complete and on disk
+        File sourceFile = new File(source);
+        File destinationFile = new File(destination);
+        File tmpFile = new File(destination + ".tmp");
+
+        FileInputStream input = null;
+        FileOutputStream output = null;
+        long size = 0;
+
+        try
+        {
+            input = new FileInputStream(sourceFile);
+            output = new FileOutputStream(tmpFile);
+
+            FileChannel inputChannel = input.getChannel();
+            FileChannel outputChannel = output.getChannel();
+            size = inputChannel.size();
+
+            //transferTo may copy less than asked for
+            long position = 0;
+            while (position < size)
+                position += inputChannel.transferTo(position, size - position, outputChannel);
+
+            outputChannel.force(true);
+        }
+        finally
+        {
+            if (input != null)
+            {
+                input.close();
+                input = null;
+            }
+
+            if (output != null)
+            {
+                output.close();
+                output = null;
+            }
+        }
+
+        //the time is part of what makes two copies the same save
+        tmpFile.setLastModified(sourceFile.lastModified());
+
+        if (!tmpFile.renameTo(destinationFile))
+        {
+            tmpFile.delete();
+            throw (new Exception("Could not write '" + destination + "'"));
+        }
+
+        Metrics.Stop("StorageBackup.Copy", start);
+        Metrics.Count("StorageBackup.Bytes", size);
+    }
+
+    private static Boolean VerifyMac(File file, StorageHeader key, StorageHeader header, long cipherLength) throws Exception
+    {
+        Mac mac = StorageHeader.NewMac(key.Key());
+        byte[] expected = new byte[header.TrailerLength()];
+        RandomAccessFile stream = null;
+
+        try
+        {
+            stream = new RandomAccessFile(file, "r");
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BufferSize);
+
+            long position = header.MacStart();
+            long end = header.Length() + cipherLength;
+            while (position < end)
+            {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead < 0)
+                    return false;
+
+                mac.update(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
+
+            stream.seek(end);
+            stream.readFully(expected);
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+
+        return MessageDigest.isEqual(expected, mac.doFinal());
+    }
+
+    private static Boolean SameContents(File first, File second) throws Exception
+    {
+        long start = Metrics.Start();
+        FileInputStream firstStream = null;
+        FileInputStream secondStream = null;
+
+        try
+        {
+            firstStream = new FileInputStream(first);
+            secondStream = new FileInputStream(second);
+            FileChannel firstChannel = firstStream.getChannel();
+            FileChannel secondChannel = secondStream.getChannel();
+            ByteBuffer firstBuffer = ByteBuffer.allocate(BufferSize);
+            ByteBuffer secondBuffer = ByteBuffer.allocate(BufferSize);
+
+            while (true)
+            {
+                firstBuffer.clear();
+                secondBuffer.clear();
+                int firstRead = ReadFully(firstChannel, firstBuffer);
+                int secondRead = ReadFully(secondChannel, secondBuffer);
+
+                if (firstRead != secondRead)
+                    return false;
+                if (firstRead == 0)
+                    return true;
+
+                firstBuffer.flip();
+                secondBuffer.flip();
+                if (!firstBuffer.equals(secondBuffer))
+                    return false;
+            }
+        }
+        finally
+        {
+            if (firstStream != null)
+            {
+                firstStream.close();
+                firstStream = null;
+            }
+
+            if (secondStream != null)
+            {
+                secondStream.close();
+                secondStream = null;
+            }
+
+            Metrics.Stop("StorageBackup.Compare", start);
+        }
+    }
+
+    //fills the buffer unless the end of the file comes first
+    private static int ReadFully(FileChannel channel, ByteBuffer buffer) throws Exception
+    {
+        int total = 0;
+        while (buffer.hasRemaining())
+        {
+            int bytesRead = channel.read(buffer);
+            if (bytesRead < 0)
+                break;
+
+            total += bytesRead;
+        }
+
+        return total;
+    }
+
+    private static byte[] ReadHead(File file, int length) throws Exception
+    {
+        RandomAccessFile stream = null;
+
+        try
+        {
+            stream = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[length];
+            stream.readFully(bytes);
+            return bytes;
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+}
@@ -1,23 +1,35 @@
 package com.salilsoftware.InfoLocker.Data;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.StringWriter;
-
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.crypto.Mac;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.w3c.dom.Document;
-import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
 import com.salilsoftware.InfoLocker.Utilities.NotifyConsumer;
 import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+import com.salilsoftware.InfoLocker.Utilities.StringPool;
 import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+import com.salilsoftware.InfoLocker.Utilities.Utf8XmlSerializer;
 
 public class StorageFile extends NotifyProvider implements NotifyConsumer
 {
@@ -43,6 +55,25 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         }
     }
 
+    //what is in an unlocked storage, from the totals its folders keep
+    public class StorageStatistics
+    {
+        public int Folders() { return m_folders; }
+        public int Notes() { return m_notes; }
+        public long ContentLength() { return m_contentLength; }
+
+        private int m_folders;
+        private int m_notes;
+        private long m_contentLength;
+
+        public StorageStatistics(Node_Folder root)
+        {
+            m_folders = root.TotalFolders();
+            m_notes = root.TotalNotes();
+            m_contentLength = root.TotalContentLength();
+        }
+    }
+
     public String DefaultStorageName() { return m_defaultStorageName; }
     public String FileName() { return m_fileName; }
     
@@ -87,29 +118,91 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
             return m_actualRootNode;
     }
 
+    public Node_Common Resolve(String path)
+    {
+        if (IsLocked() || (m_actualRootNode == null))
+            return RootNode().Resolve(path);
+
+        Node_Common node = m_pathCache.get(path);
+        if (node == null)
+        {
+            node = m_actualRootNode.Resolve(path);
+            if (node != null)
+            {
+                //keep the cache small, it only needs to serve repeated lookups
+                if (m_pathCache.size() >= MaxCachedPaths)
+                    m_pathCache.clear();
+
+                m_pathCache.put(path, node);
+            }
+        }
+
+        return node;
+    }
+
+    private static final int MaxCachedPaths = 64;
+
+    //a save is written next to the file as <file>.<random>.tmp, locked while it is written,
+    //and renamed over the file once complete
+    public static final String TempSuffix = ".tmp";
+    private static final long TempGracePeriod = 60 * 1000;
+
     private String m_defaultStorageName;
     private String m_fileName;
     private String m_password;
 
+    //the file contents as last read or written by us, the common ancestor for merges
+    private byte[] m_savedImage;
+
+    //header the cached key belongs to, with a salted digest of the password it was unlocked
+    //with. the password itself is not kept once the tree is evicted
+    private StorageHeader m_header;
+    private byte[] m_headerSalt;
+    private byte[] m_headerDigest;
+
     private StorageAttributes m_fileInfo;
     private Node_Folder m_actualRootNode;
     private Node_Folder m_dummyRootNode;
     
-    private Boolean m_isLocked;
-    private Boolean m_isDirty;
-    private Boolean m_isInitialized;
+    private boolean m_isLocked;
+    private boolean m_isDirty;
+    private boolean m_isInitialized;
+
+    private HashMap<String, Node_Common> m_pathCache;
+    private StringPool m_strings;
+    private StorageHistory m_history;
+    private long m_lastActivity;
+    private UndoLog m_undoLog;
+
+    public StringPool Strings() { return m_strings; }
+
+    public UndoLog UndoLog() { return m_undoLog; }
+
+    public StorageHistory History()
+    {
+        if (m_history == null)
+            m_history = new StorageHistory(this);
+
+        return m_history;
+    }
 
     public StorageFile()
     {
     	m_isInitialized = false;
-    	this.Listners.add(this);
+    	m_pathCache = new HashMap<String, Node_Common>();
+    	m_strings = new StringPool();
+    	m_undoLog = new UndoLog();
+    	this.AddListner(this);
         Clear();
     }
 
     public StorageFile(String filename) throws Exception
     {
     	m_isInitialized = false;
-    	this.Listners.add(this);
+    	m_pathCache = new HashMap<String, Node_Common>();
+    	m_strings = new StringPool();
+    	m_undoLog = new UndoLog();
+    	this.AddListner(this);
         Clear();
 
         Initialize(filename, true);
@@ -119,12 +212,24 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
     private void Clear()
     {
         if (m_actualRootNode != null)
-            m_actualRootNode.Listners.add(this);
+        {
+            m_actualRootNode.RemoveListner(this);
+            StorageWatcher.UnWatch(this);
+        }
+
+        StorageReclaimer.UnTrack(this);
 
         m_actualRootNode = null;
+        m_pathCache.clear();
+        m_strings.Clear();
+        m_undoLog.Clear();
         NotifyPropertyChanged("RootNode");
 
         m_password = null;
+        m_savedImage = null;
+        m_header = null;
+        m_headerSalt = null;
+        m_headerDigest = null;
 
         FileInfo(null);
         IsDirty(false);
@@ -140,7 +245,8 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
     	File file = new File(filename);
         if (checkFileExistence)
         {
-        	if (!file.exists())
+            //a first save that did not get renamed is recovered on open
+        	if (!file.exists() && (TempFiles(filename).length == 0))
                 throw (new Exception("File not found"));
         }
 
@@ -164,10 +270,10 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
 
         try
         {
-            StorageFile tempStorage = new StorageFile(filename);
-            tempStorage.UnLock(password);
+            //read back what was written, with the key we already have
+            Node_Folder writtenRoot = Parse(ReadImage(filename), password);
 
-            if (!m_actualRootNode.IsEqual(tempStorage.RootNode()))
+            if (!m_actualRootNode.IsEqual(writtenRoot))
                 throw (new Exception());
         }
         catch (Exception exp)
@@ -192,11 +298,14 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         m_actualRootNode = new Node_Folder();
         m_actualRootNode.Name(DefaultStorageName());
         m_actualRootNode.Store(this);
-        m_actualRootNode.Listners.add(this);
+        m_actualRootNode.AddListner(this);
         NotifyPropertyChanged("RootNode");
 
         m_password = password;
         IsDirty(true);
+        StorageWatcher.Watch(this);
+        StorageReclaimer.Track(this);
+        Touch();
 
         //save the temporary file
         Save();
@@ -207,124 +316,411 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
 
     public void Open(String password) throws Exception
     {
-        Node_Folder newRoot = null;
         Boolean saveOnOpen = false;
 
         if (m_actualRootNode != null)
             return;
 
-        if (StringUtils.IsNullOrEmpty(password))
+        long openStart = Metrics.Start();
+
+        byte[] image = null;
+        if ((m_savedImage != null) && IsInSync())
         {
-            try
+            //the tree was evicted while locked, its file contents are still here and current
+            image = m_savedImage;
+            Metrics.Count("StorageFile.WarmOpen");
+        }
+        else
+        {
+            Recover(password);
+
+            //reject a wrong password from the header alone, before the file is read and decrypted
+            StorageHeader header = StorageHeader.Read(FileName());
+            if (header != null)
+                Key(header, password);
+
+            long phaseStart = Metrics.Start();
+            image = ReadImage(FileName());
+            Metrics.Stop("StorageFile.Read", phaseStart);
+        }
+
+        Node_Folder newRoot = Parse(image, password);
+
+        if (image != m_savedImage)
+            FileInfo(new StorageAttributes(FileName()));
+
+        m_actualRootNode = newRoot;
+        m_actualRootNode.Store(this);
+        m_actualRootNode.AddListner(this);
+        NotifyPropertyChanged("RootNode");
+
+        m_password = password;
+        m_savedImage = image;
+        IsDirty(false);
+        StorageWatcher.Watch(this);
+        StorageReclaimer.Track(this);
+        Touch();
+
+        Metrics.Stop("StorageFile.Open", openStart);
+        if (Metrics.IsEnabled())
+        {
+            Metrics.Record("StorageFile.ReadBytes", image.length);
+            Metrics.Record("StorageFile.Nodes", 1 + m_actualRootNode.TotalFolders() + m_actualRootNode.TotalNotes());
+        }
+
+        if (saveOnOpen)
+        {
+            IsDirty(true);
+            Save();
+        }
+    }
+
+    private static byte[] ReadImage(String filename) throws Exception
+    {
+        File file = new File(filename);
+        FileInputStream stream = null;
+
+        try
+        {
+            stream = new FileInputStream(file);
+            byte[] image = new byte[(int)file.length()];
+
+            int offset = 0;
+            while (offset < image.length)
             {
-            	DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            	DocumentBuilder builder = factory.newDocumentBuilder();
-            	Document doc = null;
-            	
-            	try
-            	{
-            		doc = builder.parse(new File(FileName()));
-            	}
-            	catch (Exception exp)
-            	{
-            		throw (new Exception("Incorrect password"));
-            	}
-            	
-            	if (StringUtils.Equals(doc.getDocumentElement().getNodeName(), "Folder"))
-            	{
-            		newRoot = new Node_Folder();
-                    String storedPassword = newRoot.DeSerialize(doc.getDocumentElement());
-                    if (!StringUtils.IsNullOrEmpty(storedPassword) && (!StringUtils.Equals(storedPassword, password)))
-                        throw (new Exception("Incorrect password"));
-            	}
+                int bytesRead = stream.read(image, offset, image.length - offset);
+                if (bytesRead < 0)
+                    throw (new Exception("Unexpected end of file"));
+
+                offset += bytesRead;
             }
-            catch (Exception exp)
+
+            return image;
+        }
+        finally
+        {
+            if (stream != null)
             {
-            	throw exp;
+                stream.close();
+                stream = null;
             }
         }
-        else if (password.length() == 8)
+    }
+
+    //every writer gets a temp file of its own, so saves of the same file never share one.
+    //only the name is chosen here, the writer creates the file and locks it right away
+    private static File NewTempFile(String filename) throws Exception
+    {
+        File file = new File(filename).getAbsoluteFile();
+        SecureRandom random = new SecureRandom();
+
+        File tmpFile = null;
+        do
         {
-            FileInputStream encrypted_stream = null;
-            ByteArrayOutputStream decrypted_outputstream = null;
-            ByteArrayInputStream decrypted_inputstream = null;
+            tmpFile = new File(file.getParentFile(), file.getName() + "." + Long.toHexString(random.nextLong()) + TempSuffix);
+        }
+        while (tmpFile.exists());
 
-            try
+        return tmpFile;
+    }
+
+    //temp files of saves of the file, oldest first
+    private static File[] TempFiles(String filename)
+    {
+        File file = new File(filename).getAbsoluteFile();
+        final String prefix = file.getName() + ".";
+        File[] files = file.getParentFile().listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
             {
-            	encrypted_stream = new FileInputStream(FileName());
-            	DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            	DocumentBuilder builder = factory.newDocumentBuilder();
-            	Document doc = null;
+                return (name.length() > prefix.length() + TempSuffix.length()) &&
+                       name.startsWith(prefix) && name.endsWith(TempSuffix);
+            }
+        });
 
-            	try
-                {
-                	decrypted_outputstream = Encryptor.Decrypt(encrypted_stream, password);
-                    decrypted_inputstream = new ByteArrayInputStream(decrypted_outputstream.toByteArray());
-            		doc = builder.parse(decrypted_inputstream);
-                }
-                catch (Exception exp)
-                {
-            		throw (new Exception("Incorrect password"));
-                }
-            	
-            	if (StringUtils.Equals(doc.getDocumentElement().getNodeName(), "Folder"))
-            	{
-            		newRoot = new Node_Folder();
-                    String storedPassword = newRoot.DeSerialize(doc.getDocumentElement());
-                    if (!StringUtils.IsNullOrEmpty(storedPassword) && (!StringUtils.Equals(storedPassword, password)))
-                        throw (new Exception("Incorrect password"));
-            	}
+        if (files == null)
+            return new File[0];
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File object1, File object2)
+            {
+                long difference = object1.lastModified() - object2.lastModified();
+                return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
             }
-            catch (Exception exp)
+        });
+
+        return files;
+    }
+
+    //a save cut short by a crash or a power loss leaves its temp file behind, either incomplete
+    //or complete and checked but not renamed yet. temp files still locked belong to a save in
+    //progress and are left alone. of the others a complete one newer than the file finishes its
+    //save, anything else is dropped
+    private void Recover(String password) throws Exception
+    {
+        File[] tmpFiles = TempFiles(FileName());
+        if (tmpFiles.length == 0)
+            return;
+
+        long start = Metrics.Start();
+        File mainFile = new File(FileName());
+
+        //a wrong password must not make a good save look broken
+        StorageHeader header = StorageHeader.Read(mainFile.exists() ? mainFile.getPath() : tmpFiles[tmpFiles.length - 1].getPath());
+        if (header != null)
+            Key(header, password);
+
+        for (File tmpFile : tmpFiles)
+        {
+            //a writer creates its file a moment before it can lock it
+            if ((tmpFile.length() == 0) && ((System.currentTimeMillis() - tmpFile.lastModified()) < TempGracePeriod))
             {
-                throw exp;
+                Metrics.Count("StorageFile.InProgress");
+                continue;
             }
-            finally
+
+            RandomAccessFile stream = null;
+
+            try
             {
-                if (encrypted_stream != null)
+                stream = new RandomAccessFile(tmpFile, "rw");
+                FileLock lock = null;
+                try
                 {
-                    encrypted_stream.close();
-                    encrypted_stream = null;
+                    lock = stream.getChannel().tryLock();
+                }
+                catch (OverlappingFileLockException exp)
+                {
+                    lock = null;
+                }
+
+                if (lock == null)
+                {
+                    Metrics.Count("StorageFile.InProgress");
+                    continue;
+                }
+
+                //held until the file was renamed or deleted, so no one else recovers it too
+                Boolean complete = false;
+                if (!mainFile.exists() || (tmpFile.lastModified() >= mainFile.lastModified()))
+                {
+                    try
+                    {
+                        Parse(ReadImage(tmpFile.getPath()), password);
+                        complete = true;
+                    }
+                    catch (Exception exp)
+                    {
+                        complete = false;
+                    }
                 }
 
-                if (decrypted_inputstream != null)
+                if (complete)
                 {
-                	decrypted_inputstream.close();
-                	decrypted_inputstream = null;
+                    if (!tmpFile.renameTo(mainFile))
+                        throw (new Exception("Could not recover '" + FileName() + "'"));
+                }
+                else
+                {
+                    tmpFile.delete();
                 }
 
-                if (decrypted_outputstream != null)
+                Metrics.Count(complete ? "StorageFile.Recovered" : "StorageFile.Discarded");
+            }
+            finally
+            {
+                if (stream != null)
                 {
-                	decrypted_outputstream.close();
-                	decrypted_outputstream = null;
+                    stream.close();
+                    stream = null;
                 }
             }
         }
-        else
+
+        Metrics.Stop("StorageFile.Recover", start);
+    }
+
+    private byte[] Key(StorageHeader header, String password) throws Exception
+    {
+        if (StringUtils.IsNullOrEmpty(password))
+            throw (new Exception("Incorrect password"));
+
+        //deriving the key is deliberately slow, so it is done once per salt and password
+        if (header.SameKey(m_header) && IsHeaderPassword(password))
+            return m_header.Key();
+
+        long start = Metrics.Start();
+        Boolean unlocked = header.Unlock(password);
+        Metrics.Stop("StorageFile.DeriveKey", start);
+
+        if (!unlocked)
+            throw (new Exception("Incorrect password"));
+
+        HeaderPassword(header, password);
+        return header.Key();
+    }
+
+    private void HeaderPassword(StorageHeader header, String password) throws Exception
+    {
+        m_header = header;
+        m_headerSalt = new byte[16];
+        new SecureRandom().nextBytes(m_headerSalt);
+        m_headerDigest = PasswordDigest(password);
+    }
+
+    private Boolean IsHeaderPassword(String password) throws Exception
+    {
+        return ((m_headerDigest != null) && MessageDigest.isEqual(m_headerDigest, PasswordDigest(password)));
+    }
+
+    private byte[] PasswordDigest(String password) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(m_headerSalt);
+        digest.update(password.getBytes("UTF-8"));
+        return digest.digest();
+    }
+
+    private Node_Folder Parse(byte[] image, String password) throws Exception
+    {
+        Node_Folder newRoot = null;
+        ByteArrayInputStream decrypted_inputstream = null;
+
+        byte[] data = Unseal(image, password);
+
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            Document doc = null;
+
+            try
+            {
+                decrypted_inputstream = new ByteArrayInputStream(data);
+
+                long start = Metrics.Start();
+                doc = builder.parse(decrypted_inputstream);
+                Metrics.Stop("StorageFile.Parse", start);
+            }
+            catch (Exception exp)
+            {
+                throw (new Exception("Incorrect password"));
+            }
+
+            if (StringUtils.Equals(doc.getDocumentElement().getNodeName(), "Folder"))
+            {
+                long start = Metrics.Start();
+                newRoot = new Node_Folder();
+                String storedPassword = newRoot.DeSerialize(doc.getDocumentElement(), m_strings);
+                Metrics.Stop("StorageFile.Build", start);
+
+                if (!StringUtils.IsNullOrEmpty(storedPassword) && (!StringUtils.Equals(storedPassword, password)))
+                    throw (new Exception("Incorrect password"));
+            }
+        }
+        finally
         {
+            if (decrypted_inputstream != null)
+            {
+                decrypted_inputstream.close();
+                decrypted_inputstream = null;
+            }
+        }
+
+        if (newRoot == null)
+            throw (new Exception("Storage has no root folder"));
+
+        return newRoot;
+    }
+
+    byte[] Unseal(byte[] image) throws Exception
+    {
+        return Unseal(image, m_password);
+    }
+
+    private byte[] Unseal(byte[] image, String password) throws Exception
+    {
+        ByteArrayInputStream encrypted_stream = null;
+        ByteArrayOutputStream decrypted_outputstream = null;
+
+        if (StringUtils.IsNullOrEmpty(password))
+            return image;
+        else if (password.length() != 8)
             throw (new Exception("Incorrect password"));
+
+        StorageHeader header = StorageHeader.Read(image);
+        byte[] key = null;
+        if (header != null)
+            key = Key(header, password);
+
+        long start = Metrics.Start();
+        byte[] decrypted = null;
+
+        //the password is known to be right by now, so a failing mac means the file changed
+        int cipherLength = 0;
+        if (header != null)
+        {
+            cipherLength = image.length - header.Length() - header.TrailerLength();
+            if ((cipherLength < 0) ||
+                ((header.TrailerLength() > 0) && !VerifyMac(header, key, image, cipherLength)))
+                throw (new Exception("Storage file is damaged"));
         }
 
-        FileInfo(new StorageAttributes(FileName()));
+        try
+        {
+            if (header != null)
+            {
+                encrypted_stream = new ByteArrayInputStream(image, header.Length(), cipherLength);
+                decrypted_outputstream = Encryptor.Decrypt(encrypted_stream, key, header.IV());
+            }
+            else
+            {
+                encrypted_stream = new ByteArrayInputStream(image);
+                decrypted_outputstream = Encryptor.Decrypt(encrypted_stream, password);
+            }
 
-        m_actualRootNode = newRoot;
-        m_actualRootNode.Store(this);
-        m_actualRootNode.Listners.add(this);
-        NotifyPropertyChanged("RootNode");
+            decrypted = decrypted_outputstream.toByteArray();
+        }
+        catch (Exception exp)
+        {
+            throw (new Exception("Incorrect password"));
+        }
+        finally
+        {
+            if (encrypted_stream != null)
+            {
+                encrypted_stream.close();
+                encrypted_stream = null;
+            }
 
-        m_password = password;
-        IsDirty(false);
+            if (decrypted_outputstream != null)
+            {
+                decrypted_outputstream.close();
+                decrypted_outputstream = null;
+            }
+        }
 
-        if (saveOnOpen)
+        //the encryptor pads the last block with zeros, which strict parsers refuse
+        int length = decrypted.length;
+        while ((length > 0) && (decrypted[length - 1] == 0))
+            length--;
+
+        byte[] data = decrypted;
+        if (length != decrypted.length)
         {
-            IsDirty(true);
-            Save();
+            data = new byte[length];
+            System.arraycopy(decrypted, 0, data, 0, length);
         }
+
+        Metrics.Stop("StorageFile.Decrypt", start);
+        return data;
     }
 
     public void Close(Boolean saveWhileClosing) throws Exception
     {
-        if (m_actualRootNode == null)
+        //an evicted storage still holds its file contents, which go as well
+        if ((m_actualRootNode == null) && (m_savedImage == null))
             return;
 
         if (saveWhileClosing && IsDirty())
@@ -347,13 +743,31 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         if (!IsDirty())
             return;
 
-        SaveAs(FileName(), m_password, false);
-        IsDirty(false);
+        //someone else wrote the file since we last read or saved it. fold their changes
+        //into ours first. if the file cannot be read with our password it is left alone,
+        //overwriting it would lose what the other writer saved. SaveAs() still can
+        if (!IsInSync() && !Merge())
+        {
+            Metrics.Count("StorageFile.OutOfSync");
+            throw (new Exception("Storage is out of sync"));
+        }
 
+        byte[] previousImage = m_savedImage;
+        m_savedImage = Write(FileName(), m_password, false);
+        IsDirty(false);
         FileInfo(new StorageAttributes(FileName()));
+
+        //the history finds the changed subtrees by their digests. the file is saved at this
+        //point, a version that could not be recorded is reported by History().LastError()
+        History().Record(previousImage, m_savedImage, m_actualRootNode);
     }
 
     public void SaveAs(String filename, String password, Boolean checkSync) throws Exception
+    {
+        Write(filename, password, checkSync);
+    }
+
+    private byte[] Write(String filename, String password, Boolean checkSync) throws Exception
     {
         if (checkSync && !IsInSync())
             throw (new Exception("Storage is out of sync"));
@@ -361,65 +775,173 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         if (m_actualRootNode == null)
             throw (new Exception("Storage is not initialized"));
 
-        File tmpFile = File.createTempFile("tmp", "stg");
-        String tempFileName = tmpFile.getPath();
+        long saveStart = Metrics.Start();
+
+        //in the same directory, so the rename below stays on one file system and replaces
+        //the old file in one step: the file is always either the old or the new save
+        byte[] image = Format(m_actualRootNode, password);
+        File mainFile = new File(filename);
+        File tmpFile = NewTempFile(filename);
+        Boolean committed = false;
+        RandomAccessFile stream = null;
 
-        String xmlData = null;
-        
         try
         {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            XmlSerializer serializer = factory.newSerializer();
-            StringWriter writer = new StringWriter();
-            serializer.setOutput(writer);
+            long start = Metrics.Start();
+
+            //created and locked in one go, the lock tells Recover() of other storages that
+            //this save is still in progress
+            stream = new RandomAccessFile(tmpFile, "rw");
+            FileChannel channel = stream.getChannel();
+            channel.lock();
+
+            //the image goes to the file as it is, without another buffer in between
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            Metrics.Stop("StorageFile.Write", start);
+
+            //on the disk before it may replace anything
+            start = Metrics.Start();
+            channel.force(true);
+            Metrics.Stop("StorageFile.Force", start);
+
+            start = Metrics.Start();
+            Boolean intact = CheckIntegrity(tmpFile.getPath(), password);
+            Metrics.Stop("StorageFile.Integrity", start);
+
+            if (!intact)
+                throw (new Exception("Integrity check failed"));
+
+            start = Metrics.Start();
+            if (!tmpFile.renameTo(mainFile))
+                throw (new Exception("Could not write '" + filename + "'"));
+
+            committed = true;
+            Metrics.Stop("StorageFile.Rename", start);
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+
+            //a save that failed must not be taken for one that only missed the rename
+            if (!committed)
+                tmpFile.delete();
+        }
+
+        Metrics.Stop("StorageFile.SaveAs", saveStart);
+        if (Metrics.IsEnabled())
+            Metrics.Record("StorageFile.WriteBytes", image.length);
+
+        return image;
+    }
+
+    private byte[] Format(Node_Folder root, String password) throws Exception
+    {
+        byte[] xmlData = null;
+        long start = Metrics.Start();
+
+        try
+        {
+            //serialize straight to utf-8, the document never exists as one big String and
+            //note contents are copied as the utf-8 they are kept as
+            XmlSerializer serializer = new Utf8XmlSerializer();
+            ByteArrayOutputStream writer = new ByteArrayOutputStream(SerializedSize(root));
+            serializer.setOutput(writer, "utf-8");
             serializer.startDocument("utf-8", false);
-        	
-            m_actualRootNode.Serialize(serializer, password);
+
+            root.Serialize(serializer, password);
             serializer.endDocument();
-            xmlData = writer.toString();
+            xmlData = writer.toByteArray();
         }
         catch (Exception exp)
         {
             throw exp;
         }
 
+        Metrics.Stop("StorageFile.Serialize", start);
+        return Seal(xmlData, password);
+    }
+
+    //the markup and name of a node take about this much besides its content
+    private static final int SerializedNodeSize = 48;
+
+    //expected size of the document, from the totals of the tree, so the buffer rarely grows
+    private static int SerializedSize(Node_Folder root)
+    {
+        long nodes = 1 + (long)root.TotalFolders() + root.TotalNotes();
+        long size = root.TotalContentLength() + (nodes * SerializedNodeSize);
+        return (int)Math.min(size, Integer.MAX_VALUE - 8);
+    }
+
+    private static Boolean VerifyMac(StorageHeader header, byte[] key, byte[] image, int length) throws Exception
+    {
+        Mac mac = StorageHeader.NewMac(key);
+        mac.update(image, header.MacStart(), header.Length() - header.MacStart() + length);
+
+        byte[] expected = new byte[header.TrailerLength()];
+        System.arraycopy(image, header.Length() + length, expected, 0, expected.length);
+        return MessageDigest.isEqual(expected, mac.doFinal());
+    }
+
+    byte[] Seal(byte[] data) throws Exception
+    {
+        return Seal(data, m_password);
+    }
+
+    private byte[] Seal(byte[] data, String password) throws Exception
+    {
         if (StringUtils.IsNullOrEmpty(password))
         {
-        	BufferedOutputStream unencrypted_stream = null; 
-
-            try
-            {
-            	unencrypted_stream = new BufferedOutputStream(new FileOutputStream(tempFileName));
-            	unencrypted_stream.write(xmlData.getBytes());
-            }
-            catch (Exception exp)
-            {
-                throw exp;
-            }
-            finally
-            {
-                if (unencrypted_stream != null)
-                {
-                    unencrypted_stream.flush();
-                    unencrypted_stream.close();
-                    unencrypted_stream = null;
-                }
-            }
+            return data;
         }
         else if (password.length() == 8)
         {
             ByteArrayInputStream decrypted_stream = null;
-            BufferedOutputStream encrypted_stream = null;
+            ByteArrayOutputStream encrypted_stream = null;
 
             try
             {
-                encrypted_stream = new BufferedOutputStream(new FileOutputStream(tempFileName));
-                decrypted_stream = new ByteArrayInputStream(xmlData.getBytes());
-                Encryptor.Encrypt(decrypted_stream, encrypted_stream, password);
-            }
-            catch (Exception exp)
-            {
-                throw exp;
+                StorageHeader header = null;
+                if ((m_header != null) &&
+                    (m_header.FormatVersion() == StorageHeader.Version) &&
+                    IsHeaderPassword(password))
+                {
+                    header = m_header.Renew();
+                }
+                else
+                {
+                    header = StorageHeader.Create(password);
+                    HeaderPassword(header, password);
+                }
+
+                long start = Metrics.Start();
+                encrypted_stream = new ByteArrayOutputStream(header.Length() + data.length + 16 + header.TrailerLength());
+                decrypted_stream = new ByteArrayInputStream(data);
+
+                if (header.TrailerLength() > 0)
+                {
+                    //the mac is computed while the header and the cipher text are written and
+                    //appended after them
+                    Mac mac = StorageHeader.NewMac(header.Key());
+                    MacOutputStream sealed = new MacOutputStream(encrypted_stream, mac);
+                    header.Write(sealed);
+                    Encryptor.Encrypt(decrypted_stream, sealed, header.Key(), header.IV());
+                    encrypted_stream.write(mac.doFinal());
+                }
+                else
+                {
+                    header.Write(encrypted_stream);
+                    Encryptor.Encrypt(decrypted_stream, encrypted_stream, header.Key(), header.IV());
+                }
+
+                Metrics.Stop("StorageFile.Encrypt", start);
+                return encrypted_stream.toByteArray();
             }
             finally
             {
@@ -440,12 +962,125 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         {
             throw (new Exception("Password length incorrect"));
         }
+    }
 
-        if (!CheckIntegrity(tempFileName, password))
-            throw (new Exception("Integrity check failed"));
+    public Boolean Merge() throws Exception
+    {
+        if ((m_actualRootNode == null) || (m_savedImage == null))
+            return false;
 
-        File mainFile = new File(filename);
-        tmpFile.renameTo(mainFile);
+        byte[] remoteImage = ReadImage(FileName());
+        Node_Folder remoteRoot = null;
+
+        try
+        {
+            remoteRoot = Parse(remoteImage, m_password);
+        }
+        catch (Exception exp)
+        {
+            //the other writer changed the password or left a broken file behind
+            return false;
+        }
+
+        Node_Folder baseRoot = Parse(m_savedImage, m_password);
+
+        StorageMerger merger = new StorageMerger();
+        m_undoLog.Begin();
+
+        try
+        {
+            merger.Merge(baseRoot, m_actualRootNode, remoteRoot);
+        }
+        finally
+        {
+            m_undoLog.End();
+        }
+
+        //the merged tree now descends from what is on disk
+        m_savedImage = remoteImage;
+        FileInfo(new StorageAttributes(FileName()));
+
+        if (!m_actualRootNode.IsEqual(remoteRoot))
+            IsDirty(true);
+
+        NotifyPropertyChanged("Merged");
+        return true;
+    }
+
+    //copies the file as last saved, unsaved changes are not part of the backup
+    public Boolean Backup(String destination) throws Exception
+    {
+        return StorageBackup.Backup(FileName(), destination, UnlockedHeader());
+    }
+
+    public void RestoreBackup(String backup) throws Exception
+    {
+        if (m_actualRootNode != null)
+            throw (new Exception("Storage must be closed to restore a backup"));
+
+        StorageBackup.Restore(backup, FileName(), UnlockedHeader());
+    }
+
+    private StorageHeader UnlockedHeader()
+    {
+        return ((m_header != null) && (m_header.Key() != null)) ? m_header : null;
+    }
+
+    public Boolean IsResident() { return (m_actualRootNode != null); }
+
+    //null while locked
+    public StorageStatistics Statistics()
+    {
+        if (IsLocked() || (m_actualRootNode == null))
+            return null;
+
+        return new StorageStatistics(m_actualRootNode);
+    }
+
+    public long LastActivity() { return m_lastActivity; }
+    void Touch()
+    {
+        m_lastActivity = System.currentTimeMillis();
+    }
+
+    //drops the decrypted tree and the key of a locked storage without unsaved changes. the file
+    //contents stay in memory, encrypted, so the next unlock derives the key again but parses
+    //them without reading the file. StorageReclaimer bounds how much of that is kept
+    public Boolean Evict()
+    {
+        if (!IsLocked() || IsDirty() || (m_actualRootNode == null) || (m_savedImage == null))
+            return false;
+
+        m_actualRootNode.RemoveListner(this);
+        StorageWatcher.UnWatch(this);
+
+        m_actualRootNode = null;
+        m_password = null;
+        m_pathCache.clear();
+        m_strings.Clear();
+        m_undoLog.Clear();
+
+        //without the key the contents left behind are as safe as the file itself
+        m_header = null;
+        m_headerSalt = null;
+        m_headerDigest = null;
+
+        Metrics.Count("StorageFile.Evicted");
+        NotifyPropertyChanged("IsResident");
+        return true;
+    }
+
+    //size of the encrypted copy an evicted storage keeps
+    public long CachedBytes()
+    {
+        return ((m_actualRootNode == null) && (m_savedImage != null)) ? m_savedImage.length : 0;
+    }
+
+    //drops the encrypted copy an evicted storage keeps, the next unlock reads the file again
+    public void DropCache()
+    {
+        if (m_actualRootNode == null)
+            m_savedImage = null;
     }
 
     public Boolean IsInSync()
@@ -465,6 +1100,46 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         }
     }
 
+    void Restore(Node_Folder version) throws Exception
+    {
+        if ((m_actualRootNode == null) || IsLocked())
+            throw (new Exception("Storage is locked"));
+
+        //move the contents over rather than swapping the root, anything bound to it stays valid.
+        //it is one step for undo
+        m_undoLog.Begin();
+
+        try
+        {
+            for (Node_Folder folder : new ArrayList<Node_Folder>(m_actualRootNode.SubFolders()))
+                m_actualRootNode.RemoveNode(folder);
+            for (Node_Note note : new ArrayList<Node_Note>(m_actualRootNode.SubNotes()))
+                m_actualRootNode.RemoveNode(note);
+
+            for (Node_Folder folder : new ArrayList<Node_Folder>(version.SubFolders()))
+                m_actualRootNode.AddNode(folder);
+            for (Node_Note note : new ArrayList<Node_Note>(version.SubNotes()))
+                m_actualRootNode.AddNode(note);
+
+            m_actualRootNode.Name(version.Name());
+        }
+        finally
+        {
+            m_undoLog.End();
+        }
+
+        IsDirty(true);
+        NotifyPropertyChanged("Restored");
+    }
+
+    void HandleExternalChange()
+    {
+        //called by the watcher on the main thread. our own saves update FileInfo
+        //before the event is delivered, so they never get reported
+        if ((m_actualRootNode != null) && !IsInSync())
+            NotifyPropertyChanged("ExternalChange");
+    }
+
     public Boolean Sync() throws Exception
     {
         if (FileInfo() == null)
@@ -479,7 +1154,7 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
             }
             else
             {
-                return false;
+                return Merge();
             }
         }
 
@@ -506,6 +1181,7 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
         }
 
         IsLocked(false);
+        Touch();
     }
 
     public Boolean TryUnLock(String password)
@@ -537,11 +1213,18 @@ public class StorageFile extends NotifyProvider implements NotifyConsumer
 	{
 		if(source instanceof Node_Common)
 		{
+			Touch();
+
 	        if (StringUtils.Equals(propName, "IsDirty"))
 	        {
 	            if (m_actualRootNode.IsDirty())
 	                IsDirty(true);
 	        }
+	        else if (StringUtils.Equals(propName, "Paths") ||
+	                 StringUtils.Equals(propName, "Name"))
+	        {
+	            m_pathCache.clear();
+	        }
 		}
 		else if(source instanceof StorageFile)
 		{
@@ -0,0 +1,291 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Plain text header in front of the encrypted data of a storage file.
+ *
+ *   magic       4 bytes  "ILKR"
+ *   version     1 byte
+ *   iterations  4 bytes  PBKDF2 iteration count              (version 2)
+ *   salt       16 bytes
+ *   iv         16 bytes  initialization vector of the data   (version 2)
+ *   verifier   32 bytes  SHA-256 over the salt and the key
+ *
+ * Version 4 files end with a 32 byte HMAC-SHA256 of the header and the cipher text, keyed with a
+ * SHA-256 of the key. It catches damaged or altered files without decrypting them, a changed
+ * iv or iteration count included. Version 3 files have the same trailer over the cipher text only.
+ *
+ * Version 1 files use the padded password itself as key and iv. The verifier lets a password
+ * be checked before anything is decrypted. Files written before the header existed start
+ * directly with cipher text and are read as before.
+ */
+public class StorageHeader
+{
+    public static final int Version = 4;
+    public static final int MacLength = 32;
+
+    private static final byte[] Magic = { 'I', 'L', 'K', 'R' };
+    private static final byte[] MacLabel = { 'M', 'A', 'C' };
+
+    public int FormatVersion() { return m_version; }
+    public int Iterations() { return m_iterations; }
+    public byte[] IV() { return (m_iv != null) ? m_iv : m_key; }
+
+    //only known once the header was created or unlocked with the password
+    public byte[] Key() { return m_key; }
+
+    public int Length()
+    {
+        if (m_version == 1)
+            return 4 + 1 + 16 + 32;
+        else
+            return 4 + 1 + 4 + 16 + 16 + 32;
+    }
+
+    //bytes after the cipher text
+    public int TrailerLength() { return (m_version >= 3) ? MacLength : 0; }
+
+    //offset in the file where the bytes covered by the mac start
+    public int MacStart() { return (m_version >= 4) ? 0 : Length(); }
+
+    private int m_version;
+    private int m_iterations;
+    private byte[] m_salt;
+    private byte[] m_iv;
+    private byte[] m_verifier;
+    private byte[] m_key;
+
+    private StorageHeader()
+    {
+        m_version = Version;
+        m_iterations = 0;
+        m_salt = new byte[16];
+        m_iv = null;
+        m_verifier = null;
+        m_key = null;
+    }
+
+    public static StorageHeader Create(String password) throws Exception
+    {
+        return Create(password, Encryptor.CalibratedIterations());
+    }
+
+    public static StorageHeader Create(String password, int iterations) throws Exception
+    {
+        StorageHeader header = new StorageHeader();
+        header.m_iterations = iterations;
+
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(header.m_salt);
+        header.m_iv = new byte[16];
+        random.nextBytes(header.m_iv);
+
+        header.m_key = header.DeriveKey(password);
+        header.m_verifier = header.ComputeVerifier(header.m_key);
+        return header;
+    }
+
+    //same key, fresh iv. used for every save so the key is derived only once.
+    //only meaningful for headers of the current version
+    public StorageHeader Renew()
+    {
+        StorageHeader header = new StorageHeader();
+        header.m_iterations = m_iterations;
+        header.m_salt = m_salt;
+        header.m_verifier = m_verifier;
+        header.m_key = m_key;
+
+        header.m_iv = new byte[16];
+        new SecureRandom().nextBytes(header.m_iv);
+        return header;
+    }
+
+    public static StorageHeader Read(String filename) throws Exception
+    {
+        FileInputStream stream = null;
+
+        try
+        {
+            stream = new FileInputStream(filename);
+            return Read(stream);
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+
+    public static StorageHeader Read(byte[] image) throws Exception
+    {
+        return Read(new ByteArrayInputStream(image));
+    }
+
+    //returns null when the data does not start with a header
+    public static StorageHeader Read(InputStream stream) throws Exception
+    {
+        byte[] prefix = ReadBytes(stream, Magic.length + 1);
+        if (prefix == null)
+            return null;
+
+        for (int index = 0; index < Magic.length; index++)
+        {
+            if (prefix[index] != Magic[index])
+                return null;
+        }
+
+        StorageHeader header = new StorageHeader();
+        header.m_version = prefix[4];
+        if ((header.m_version < 1) || (header.m_version > Version))
+            throw (new Exception("Unsupported storage version " + header.m_version));
+
+        byte[] bytes = ReadBytes(stream, header.Length() - prefix.length);
+        if (bytes == null)
+            return null;
+
+        int offset = 0;
+        if (header.m_version >= 2)
+        {
+            header.m_iterations = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+                                  ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+            offset += 4;
+        }
+
+        System.arraycopy(bytes, offset, header.m_salt, 0, 16);
+        offset += 16;
+
+        if (header.m_version >= 2)
+        {
+            header.m_iv = new byte[16];
+            System.arraycopy(bytes, offset, header.m_iv, 0, 16);
+            offset += 16;
+        }
+
+        header.m_verifier = new byte[32];
+        System.arraycopy(bytes, offset, header.m_verifier, 0, 32);
+        return header;
+    }
+
+    private static byte[] ReadBytes(InputStream stream, int count) throws Exception
+    {
+        byte[] bytes = new byte[count];
+
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int bytesRead = stream.read(bytes, offset, bytes.length - offset);
+            if (bytesRead < 0)
+                return null;
+
+            offset += bytesRead;
+        }
+
+        return bytes;
+    }
+
+    public void Write(OutputStream stream) throws Exception
+    {
+        stream.write(Magic);
+        stream.write(m_version);
+
+        if (m_version >= 2)
+        {
+            stream.write(m_iterations >>> 24);
+            stream.write(m_iterations >>> 16);
+            stream.write(m_iterations >>> 8);
+            stream.write(m_iterations);
+        }
+
+        stream.write(m_salt);
+
+        if (m_version >= 2)
+            stream.write(m_iv);
+
+        stream.write(m_verifier);
+    }
+
+    //derives the key (the slow part) and checks it against the verifier
+    public Boolean Unlock(String password)
+    {
+        try
+        {
+            byte[] key = DeriveKey(password);
+
+            //MessageDigest.isEqual does not stop at the first differing byte
+            if (!MessageDigest.isEqual(m_verifier, ComputeVerifier(key)))
+                return false;
+
+            m_key = key;
+            return true;
+        }
+        catch (Exception exp)
+        {
+            return false;
+        }
+    }
+
+    //checks a key derived before against the verifier, without the slow derivation
+    public Boolean Accepts(byte[] key)
+    {
+        try
+        {
+            return ((key != null) && MessageDigest.isEqual(m_verifier, ComputeVerifier(key)));
+        }
+        catch (Exception exp)
+        {
+            return false;
+        }
+    }
+
+    //mac over the header and the cipher text (only the cipher text for version 3), keyed from
+    //the storage key
+    public static Mac NewMac(byte[] key) throws Exception
+    {
+        if (key == null)
+            throw (new Exception("Storage is locked"));
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(MacLabel);
+        digest.update(key);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(digest.digest(), "HmacSHA256"));
+        return mac;
+    }
+
+    public Boolean SameKey(StorageHeader other)
+    {
+        return ((other != null) &&
+                (m_iterations == other.m_iterations) &&
+                MessageDigest.isEqual(m_salt, other.m_salt) &&
+                MessageDigest.isEqual(m_verifier, other.m_verifier));
+    }
+
+    private byte[] DeriveKey(String password) throws Exception
+    {
+        if (m_version == 1)
+            return Encryptor.KeyBytes(password);
+        else
+            return Encryptor.DeriveKey(password, m_salt, m_iterations);
+    }
+
+    private byte[] ComputeVerifier(byte[] key) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(m_salt);
+        digest.update(key);
+        return digest.digest();
+    }
+}
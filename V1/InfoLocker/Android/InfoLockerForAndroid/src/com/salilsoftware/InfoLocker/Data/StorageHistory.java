@@ -0,0 +1,559 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xmlpull.v1.XmlSerializer;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+import com.salilsoftware.InfoLocker.Utilities.Utf8XmlSerializer;
+
+/*
+ * Earlier versions of a storage, kept in a "<file>.history" directory next to it. History is
+ * off until Enable() creates that directory, after that every save adds a version.
+ *
+ * Most versions are deltas: the saved tree with every subtree that already appeared since the
+ * last full snapshot replaced by a <Ref> to its digest, so a delta grows with what was edited
+ * and not with the size of the storage. Every FullSnapshotInterval versions, or when the saved
+ * tree does not descend from the latest version, the saved file itself is copied instead. That
+ * bounds the chain a restore has to replay. Deltas are encrypted like the storage itself.
+ *
+ * Only the last KeptChains() chains, each a full snapshot and the deltas after it, are kept;
+ * older versions are deleted once a new full snapshot was written. So the directory holds at
+ * most about KeptChains() copies of the file plus the deltas between them.
+ *
+ * Version files are named "<number>-<digest of the saved file>.full" or ".delta".
+ */
+public class StorageHistory
+{
+    public class Version
+    {
+        public int Number() { return m_number; }
+        public String Digest() { return m_digest; }
+        public Boolean IsFull() { return m_isFull; }
+        public long Time() { return m_file.lastModified(); }
+        public long Size() { return m_file.length(); }
+
+        private int m_number;
+        private String m_digest;
+        private boolean m_isFull;
+        private File m_file;
+
+        private Version(int number, String digest, Boolean isFull, File file)
+        {
+            m_number = number;
+            m_digest = digest;
+            m_isFull = isFull;
+            m_file = file;
+        }
+    }
+
+    public static final int FullSnapshotInterval = 16;
+    public static final int DefaultKeptChains = 4;
+
+    private static final String DirectorySuffix = ".history";
+    private static final String FullSuffix = ".full";
+    private static final String DeltaSuffix = ".delta";
+
+    private StorageFile m_storage;
+
+    //digests of every node written since the last full snapshot, and the version they lead up to
+    private HashSet<String> m_known;
+    private int m_knownVersion;
+    private Exception m_lastError;
+    private int m_keptChains;
+
+    StorageHistory(StorageFile storage)
+    {
+        m_storage = storage;
+        m_known = null;
+        m_knownVersion = 0;
+        m_lastError = null;
+        m_keptChains = DefaultKeptChains;
+    }
+
+    //why the last save has no version, null when it was recorded. the save itself succeeded
+    public Exception LastError() { return m_lastError; }
+
+    public File Directory()
+    {
+        if (m_storage.FileName() == null)
+            return null;
+
+        return new File(m_storage.FileName() + DirectorySuffix);
+    }
+
+    public Boolean IsEnabled()
+    {
+        File directory = Directory();
+        return ((directory != null) && directory.isDirectory());
+    }
+
+    public void Enable() throws Exception
+    {
+        File directory = Directory();
+        if (directory == null)
+            throw (new Exception("Storage is not initialized"));
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw (new Exception("Could not create history directory"));
+    }
+
+    public void Enable(int keptChains) throws Exception
+    {
+        KeptChains(keptChains);
+        Enable();
+        Prune();
+    }
+
+    //how many full snapshots with their deltas are kept, 0 keeps every version
+    public int KeptChains() { return m_keptChains; }
+    public void KeptChains(int value) { m_keptChains = Math.max(0, value); }
+
+    //deletes the chains before the last KeptChains() full snapshots
+    public void Prune()
+    {
+        if (m_keptChains == 0)
+            return;
+
+        ArrayList<Version> versions = Versions();
+        int chains = 0;
+        int first = versions.size();
+        while ((first > 0) && (chains < m_keptChains))
+        {
+            first--;
+            if (versions.get(first).IsFull())
+                chains++;
+        }
+
+        if (chains < m_keptChains)
+            return;
+
+        //newest first, a delete that fails leaves a chain that still starts with its snapshot
+        for (int index = first - 1; index >= 0; index--)
+        {
+            if (versions.get(index).m_file.delete())
+                Metrics.Count("StorageHistory.Pruned");
+        }
+    }
+
+    public ArrayList<Version> Versions()
+    {
+        ArrayList<Version> versions = new ArrayList<Version>();
+        if (!IsEnabled())
+            return versions;
+
+        File[] files = Directory().listFiles();
+        if (files == null)
+            return versions;
+
+        for (File file : files)
+        {
+            Version version = Parse(file);
+            if (version != null)
+                versions.add(version);
+        }
+
+        Collections.sort(versions, new Comparator<Version>()
+        {
+            public int compare(Version object1, Version object2)
+            {
+                return (object1.Number() < object2.Number()) ? -1 : ((object1.Number() == object2.Number()) ? 0 : 1);
+            }
+        });
+
+        return versions;
+    }
+
+    public Version FindVersion(int number)
+    {
+        for (Version version : Versions())
+        {
+            if (version.Number() == number)
+                return version;
+        }
+
+        return null;
+    }
+
+    //the tree as it was saved in the given version. it is detached from the storage, changing
+    //it changes nothing on disk
+    public Node_Folder OpenVersion(int number) throws Exception
+    {
+        long start = Metrics.Start();
+
+        ArrayList<Version> versions = Versions();
+        int target = -1;
+        for (int index = 0; index < versions.size(); index++)
+        {
+            if (versions.get(index).Number() == number)
+                target = index;
+        }
+
+        if (target < 0)
+            throw (new Exception("Version " + number + " not found"));
+
+        int first = target;
+        while ((first >= 0) && !versions.get(first).IsFull())
+            first--;
+
+        if (first < 0)
+            throw (new Exception("Version " + number + " has no full snapshot to start from"));
+
+        //every node of the chain so far, by digest, for the references of the next delta
+        HashMap<String, Node_Common> known = new HashMap<String, Node_Common>();
+        Node_Folder tree = null;
+
+        for (int index = first; index <= target; index++)
+        {
+            Version version = versions.get(index);
+
+            try
+            {
+                tree = ReadVersion(version, known);
+            }
+            catch (Exception exp)
+            {
+                throw (new Exception("Could not read version " + version.Number(), exp));
+            }
+        }
+
+        tree.IsDirty(false);
+        Metrics.Stop("StorageHistory.Open", start);
+        return tree;
+    }
+
+    public void Restore(int number) throws Exception
+    {
+        m_storage.Restore(OpenVersion(number));
+    }
+
+    //called once the file was saved, so a failure here is kept in LastError() instead of thrown
+    void Record(byte[] previousImage, byte[] image, Node_Folder root)
+    {
+        try
+        {
+            RecordVersion(previousImage, image, root);
+            m_lastError = null;
+        }
+        catch (Exception exp)
+        {
+            //the next delta is written against the known digests, which may be incomplete now
+            m_known = null;
+            m_lastError = exp;
+            Metrics.Count("StorageHistory.Failed");
+        }
+    }
+
+    private void RecordVersion(byte[] previousImage, byte[] image, Node_Folder root) throws Exception
+    {
+        if (!IsEnabled())
+            return;
+
+        long start = Metrics.Start();
+
+        ArrayList<Version> versions = Versions();
+        Version latest = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        int number = (latest == null) ? 1 : (latest.Number() + 1);
+
+        //a delta can only be written against the version the tree was loaded from or last saved as
+        Boolean full = true;
+        if ((latest != null) && (previousImage != null) &&
+            StringUtils.Equals(latest.Digest(), Digest(previousImage)))
+        {
+            int sinceFull = 0;
+            for (int index = versions.size() - 1; (index >= 0) && !versions.get(index).IsFull(); index--)
+                sinceFull++;
+
+            full = ((sinceFull + 1) >= FullSnapshotInterval) || (sinceFull == versions.size());
+
+            if (!full && ((m_known == null) || (m_knownVersion != latest.Number())))
+            {
+                //first save of this session, the previous version is exactly what was saved last
+                m_known = new HashSet<String>();
+                AddKnown(ReadTree(m_storage.Unseal(previousImage), null), m_known);
+            }
+        }
+
+        byte[] data = null;
+        if (full)
+        {
+            m_known = new HashSet<String>();
+            AddKnown(root, m_known);
+            data = image;
+        }
+        else
+        {
+            data = m_storage.Seal(FormatDelta(root, latest.Number()));
+        }
+
+        File file = new File(Directory(), number + "-" + Digest(image) + (full ? FullSuffix : DeltaSuffix));
+        WriteFile(file, data);
+        m_knownVersion = number;
+
+        //only a new full snapshot makes the oldest chain unnecessary
+        if (full)
+            Prune();
+
+        Metrics.Stop("StorageHistory.Record", start);
+        Metrics.Record("StorageHistory.Bytes", data.length);
+    }
+
+    private byte[] FormatDelta(Node_Folder root, int baseVersion) throws Exception
+    {
+        XmlSerializer serializer = new Utf8XmlSerializer();
+        ByteArrayOutputStream writer = new ByteArrayOutputStream();
+        serializer.setOutput(writer, "utf-8");
+        serializer.startDocument("utf-8", false);
+
+        serializer.startTag(null, "Delta");
+        serializer.attribute(null, "Base", Integer.toString(baseVersion));
+        WriteNode(serializer, root);
+        serializer.endTag(null, "Delta");
+
+        serializer.endDocument();
+        return writer.toByteArray();
+    }
+
+    private void WriteNode(XmlSerializer writer, Node_Common node) throws Exception
+    {
+        //unchanged subtrees still have their digests from the integrity check of the save
+        String hash = StringUtils.ToHex(node.Hash());
+        if (m_known.contains(hash))
+        {
+            writer.startTag(null, "Ref");
+            writer.attribute(null, "Hash", hash);
+            writer.endTag(null, "Ref");
+            return;
+        }
+
+        m_known.add(hash);
+
+        if (node.NodeType() == Node_Common.Type.Folder)
+        {
+            Node_Folder folder = (Node_Folder)node;
+            writer.startTag(null, "Folder");
+            writer.attribute(null, "Name", folder.Name());
+            if (folder.KeepSorted())
+                writer.attribute(null, "KeepSorted", "true");
+
+            for (Node_Folder child : folder.SubFolders())
+                WriteNode(writer, child);
+
+            for (Node_Note child : folder.SubNotes())
+                WriteNode(writer, child);
+
+            writer.endTag(null, "Folder");
+        }
+        else
+        {
+            ((Node_Note)node).Serialize(writer);
+        }
+    }
+
+    private Node_Folder ReadVersion(Version version, HashMap<String, Node_Common> known) throws Exception
+    {
+        byte[] data = m_storage.Unseal(ReadFile(version.m_file));
+        return ReadTree(data, known);
+    }
+
+    private Node_Folder ReadTree(byte[] data, HashMap<String, Node_Common> known) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(new ByteArrayInputStream(data));
+
+        Element element = doc.getDocumentElement();
+        if (StringUtils.Equals(element.getNodeName(), "Delta"))
+            element = FirstElement(element);
+
+        Node_Common root = (element != null) ? ReadNode(element, known) : null;
+        if ((root == null) || (root.NodeType() != Node_Common.Type.Folder))
+            throw (new Exception("Version has no root folder"));
+
+        return (Node_Folder)root;
+    }
+
+    private Node_Common ReadNode(Element element, HashMap<String, Node_Common> known) throws Exception
+    {
+        String name = element.getNodeName();
+
+        if (StringUtils.Equals(name, "Ref"))
+        {
+            Node_Common source = (known != null) ? known.get(element.getAttribute("Hash")) : null;
+            if (source == null)
+                throw (new Exception("Version refers to a node that is not in the history"));
+
+            if (source.NodeType() == Node_Common.Type.Folder)
+                return ((Node_Folder)source).Clone();
+            else
+                return ((Node_Note)source).Clone();
+        }
+        else if (StringUtils.Equals(name, "Note"))
+        {
+            Node_Note note = new Node_Note();
+            note.DeSerialize(element, m_storage.Strings());
+            Known(note, known);
+            return note;
+        }
+        else if (StringUtils.Equals(name, "Folder"))
+        {
+            Node_Folder folder = new Node_Folder();
+            folder.Name(m_storage.Strings().Intern(element.getAttribute("Name")));
+            if (StringUtils.Equals(element.getAttribute("KeepSorted"), "true"))
+                folder.KeepSorted(true);
+
+            NodeList children = element.getChildNodes();
+            for (int index = 0; index < children.getLength(); index++)
+            {
+                Node child = children.item(index);
+                if (child instanceof Element)
+                {
+                    Node_Common node = ReadNode((Element)child, known);
+                    if (node != null)
+                        folder.AddNode(node);
+                }
+            }
+
+            folder.IsDirty(false);
+            Known(folder, known);
+            return folder;
+        }
+
+        return null;
+    }
+
+    //a delta refers to every subtree written before, earlier in the same delta included, so
+    //nodes are known as soon as they are read. referenced copies are known by their source
+    private static void Known(Node_Common node, HashMap<String, Node_Common> known)
+    {
+        if (known != null)
+            known.put(StringUtils.ToHex(node.Hash()), node);
+    }
+
+    private static Element FirstElement(Element parent)
+    {
+        NodeList children = parent.getChildNodes();
+        for (int index = 0; index < children.getLength(); index++)
+        {
+            if (children.item(index) instanceof Element)
+                return (Element)children.item(index);
+        }
+
+        return null;
+    }
+
+    private static void AddKnown(Node_Common node, HashSet<String> known)
+    {
+        known.add(StringUtils.ToHex(node.Hash()));
+
+        if (node.NodeType() == Node_Common.Type.Folder)
+        {
+            for (Node_Common child : ((Node_Folder)node).DepthFirst())
+                known.add(StringUtils.ToHex(child.Hash()));
+        }
+    }
+
+    private Version Parse(File file)
+    {
+        String name = file.getName();
+        Boolean isFull = name.endsWith(FullSuffix);
+        if (!isFull && !name.endsWith(DeltaSuffix))
+            return null;
+
+        int separator = name.indexOf('-');
+        int suffix = name.lastIndexOf('.');
+        if ((separator <= 0) || (suffix <= separator))
+            return null;
+
+        try
+        {
+            int number = Integer.parseInt(name.substring(0, separator));
+            return new Version(number, name.substring(separator + 1, suffix), isFull, file);
+        }
+        catch (NumberFormatException exp)
+        {
+            return null;
+        }
+    }
+
+    private static String Digest(byte[] image) throws Exception
+    {
+        return StringUtils.ToHex(MessageDigest.getInstance("SHA-1").digest(image));
+    }
+
+    private static byte[] ReadFile(File file) throws Exception
+    {
+        FileInputStream stream = null;
+
+        try
+        {
+            stream = new FileInputStream(file);
+            byte[] data = new byte[(int)file.length()];
+
+            int offset = 0;
+            while (offset < data.length)
+            {
+                int bytesRead = stream.read(data, offset, data.length - offset);
+                if (bytesRead < 0)
+                    throw (new Exception("Unexpected end of file"));
+
+                offset += bytesRead;
+            }
+
+            return data;
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+
+    private static void WriteFile(File file, byte[] data) throws Exception
+    {
+        //a half written version must never be picked up, it only gets its real name once complete
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+
+        try
+        {
+            stream = new FileOutputStream(tmpFile);
+            stream.write(data);
+        }
+        finally
+        {
+            if (stream != null)
+            {
+                stream.close();
+                stream = null;
+            }
+        }
+
+        if (!tmpFile.renameTo(file))
+        {
+            tmpFile.delete();
+            throw (new Exception("Could not write version " + file.getName()));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+
+/*
+ * Three way merge of two versions of a storage that share a common ancestor.
+ * The local tree is updated in place so that anything bound to its nodes stays valid.
+ *
+ * Children are matched by type and name (the n-th child called "x" in one tree is matched
+ * with the n-th child called "x" in the other), so a rename shows up as a removal and an add.
+ * Subtrees whose digests match are skipped without being walked. The rules are:
+ *  - a side that did not change from the base takes the other side's version
+ *  - an edit wins over a removal
+ *  - when both sides edited a note differently the local content is kept and the
+ *    remote one is added next to it as a note named "<name> (conflict)"
+ */
+public class StorageMerger
+{
+    public static final String ConflictSuffix = " (conflict)";
+
+    public LinkedList<Node_Note> Conflicts() { return m_conflicts; }
+
+    private LinkedList<Node_Note> m_conflicts;
+
+    public StorageMerger()
+    {
+        m_conflicts = new LinkedList<Node_Note>();
+    }
+
+    public void Merge(Node_Folder base, Node_Folder local, Node_Folder remote)
+    {
+        if ((base != null) &&
+            !StringUtils.Equals(remote.Name(), base.Name()) &&
+            StringUtils.Equals(local.Name(), base.Name()))
+        {
+            local.Name(remote.Name());
+        }
+
+        MergeFolder(base, local, remote);
+    }
+
+    private void MergeFolder(Node_Folder base, Node_Folder local, Node_Folder remote)
+    {
+        if (local.IsSameHash(remote))
+            return;
+
+        if ((base != null) && remote.IsSameHash(base))
+            return;
+
+        HashMap<String, Node_Common> baseChildren = Index(base);
+        HashMap<String, Node_Common> remoteChildren = Index(remote);
+        HashMap<String, Node_Common> localChildren = Index(local);
+
+        for (Map.Entry<String, Node_Common> entry : localChildren.entrySet())
+        {
+            Node_Common localChild = entry.getValue();
+            Node_Common baseChild = baseChildren.get(entry.getKey());
+            Node_Common remoteChild = remoteChildren.get(entry.getKey());
+
+            if (remoteChild != null)
+            {
+                if (localChild.NodeType() == Node_Common.Type.Folder)
+                    MergeFolder((Node_Folder)baseChild, (Node_Folder)localChild, (Node_Folder)remoteChild);
+                else
+                    MergeNote(local, (Node_Note)baseChild, (Node_Note)localChild, (Node_Note)remoteChild);
+            }
+            else if ((baseChild != null) && localChild.IsSameHash(baseChild))
+            {
+                //removed on the other side and untouched here
+                local.RemoveNode(localChild);
+            }
+        }
+
+        for (Map.Entry<String, Node_Common> entry : remoteChildren.entrySet())
+        {
+            if (localChildren.containsKey(entry.getKey()))
+                continue;
+
+            Node_Common remoteChild = entry.getValue();
+            Node_Common baseChild = baseChildren.get(entry.getKey());
+
+            //removed here and untouched on the other side
+            if ((baseChild != null) && remoteChild.IsSameHash(baseChild))
+                continue;
+
+            if (remoteChild.NodeType() == Node_Common.Type.Folder)
+                local.AddNode(((Node_Folder)remoteChild).Clone());
+            else
+                local.AddNode(((Node_Note)remoteChild).Clone());
+        }
+    }
+
+    private void MergeNote(Node_Folder parent, Node_Note base, Node_Note local, Node_Note remote)
+    {
+        if (local.IsSameHash(remote))
+            return;
+
+        if ((base != null) && remote.IsSameHash(base))
+            return;
+
+        if ((base != null) && local.IsSameHash(base))
+        {
+            local.Content(remote.Content());
+            return;
+        }
+
+        Node_Note conflict = remote.Clone();
+        conflict.Name(remote.Name() + ConflictSuffix);
+        parent.AddNode(conflict);
+        m_conflicts.add(conflict);
+    }
+
+    private static HashMap<String, Node_Common> Index(Node_Folder folder)
+    {
+        LinkedHashMap<String, Node_Common> children = new LinkedHashMap<String, Node_Common>();
+        if (folder == null)
+            return children;
+
+        //copies of the lists, the merge adds and removes children of the local folder
+        HashMap<String, Integer> occurrences = new HashMap<String, Integer>();
+        for (Node_Folder child : new ArrayList<Node_Folder>(folder.SubFolders()))
+            children.put(Key(child, occurrences), child);
+        for (Node_Note child : new ArrayList<Node_Note>(folder.SubNotes()))
+            children.put(Key(child, occurrences), child);
+
+        return children;
+    }
+
+    private static String Key(Node_Common node, HashMap<String, Integer> occurrences)
+    {
+        String key = node.NodeType().name() + "/" + node.Name();
+
+        Integer count = occurrences.get(key);
+        count = (count == null) ? 0 : count + 1;
+        occurrences.put(key, count);
+
+        return key + "/" + count;
+    }
+}
@@ -0,0 +1,181 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+
+/*
+ * Locks storages nobody used for IdleTimeout() milliseconds and gives back the memory of their
+ * decrypted trees. A storage is used when it is unlocked, when its tree changes and when the
+ * screen showing it reports user interaction with Touch(). Interaction elsewhere in the app
+ * does not keep other storages open. An idle storage is locked, and if
+ * it has no unsaved changes its tree and key are evicted; only the encrypted file contents stay
+ * behind, so unlocking it again parses from memory instead of reading the file. Those copies
+ * are kept up to MaxCachedBytes() in all, the ones of the storages idle longest go first.
+ *
+ * LowMemory() is for the activity's onLowMemory (onTrimMemory needs API 14): it evicts every
+ * locked storage at once and drops the encrypted copies as well.
+ *
+ * On the device the idle check runs on the main thread every CheckInterval milliseconds while
+ * any storage is open. Elsewhere Check() has to be called by whoever hosts the storages.
+ */
+public class StorageReclaimer
+{
+    public static final long DefaultIdleTimeout = 5 * 60 * 1000;
+    public static final long CheckInterval = 30 * 1000;
+    public static final long DefaultMaxCachedBytes = 4 * 1024 * 1024;
+
+    //storages are only tracked, never kept alive, by the reclaimer
+    private static WeakHashMap<StorageFile, Boolean> s_storages = new WeakHashMap<StorageFile, Boolean>();
+    private static long s_idleTimeout = DefaultIdleTimeout;
+    private static long s_maxCachedBytes = DefaultMaxCachedBytes;
+    private static Handler s_handler = null;
+    private static Runnable s_check = null;
+    private static Boolean s_available = null;
+
+    public static synchronized long IdleTimeout() { return s_idleTimeout; }
+    public static synchronized void IdleTimeout(long value) { s_idleTimeout = value; }
+
+    public static synchronized long MaxCachedBytes() { return s_maxCachedBytes; }
+    public static synchronized void MaxCachedBytes(long value) { s_maxCachedBytes = Math.max(0, value); }
+
+    public static synchronized void Track(StorageFile storage)
+    {
+        s_storages.put(storage, Boolean.TRUE);
+        Schedule();
+    }
+
+    public static synchronized void UnTrack(StorageFile storage)
+    {
+        s_storages.remove(storage);
+    }
+
+    //for onUserInteraction of the screen showing the storage
+    public static synchronized void Touch(StorageFile storage)
+    {
+        if (storage != null)
+            storage.Touch();
+    }
+
+    public static synchronized void Check()
+    {
+        long now = System.currentTimeMillis();
+
+        for (StorageFile storage : new ArrayList<StorageFile>(s_storages.keySet()))
+        {
+            if ((now - storage.LastActivity()) < s_idleTimeout)
+                continue;
+
+            if (!storage.IsLocked())
+            {
+                storage.Lock();
+                Metrics.Count("StorageReclaimer.Locked");
+            }
+
+            storage.Evict();
+        }
+
+        TrimCache();
+    }
+
+    //drops the encrypted copies of evicted storages, longest idle first, until they fit
+    private static void TrimCache()
+    {
+        ArrayList<StorageFile> cached = new ArrayList<StorageFile>();
+        long total = 0;
+        for (StorageFile storage : s_storages.keySet())
+        {
+            if (storage.CachedBytes() > 0)
+            {
+                cached.add(storage);
+                total += storage.CachedBytes();
+            }
+        }
+
+        if (total <= s_maxCachedBytes)
+            return;
+
+        Collections.sort(cached, new Comparator<StorageFile>()
+        {
+            public int compare(StorageFile object1, StorageFile object2)
+            {
+                long difference = object1.LastActivity() - object2.LastActivity();
+                return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+            }
+        });
+
+        for (StorageFile storage : cached)
+        {
+            if (total <= s_maxCachedBytes)
+                break;
+
+            total -= storage.CachedBytes();
+            storage.DropCache();
+            Metrics.Count("StorageReclaimer.Dropped");
+        }
+    }
+
+    public static synchronized void LowMemory()
+    {
+        for (StorageFile storage : new ArrayList<StorageFile>(s_storages.keySet()))
+        {
+            if (storage.IsLocked())
+            {
+                storage.Evict();
+                storage.DropCache();
+            }
+        }
+    }
+
+    private static void Schedule()
+    {
+        if ((s_check != null) || !IsAvailable())
+            return;
+
+        if (s_handler == null)
+            s_handler = new Handler(Looper.getMainLooper());
+
+        s_check = new Runnable()
+        {
+            public void run()
+            {
+                synchronized (StorageReclaimer.class)
+                {
+                    Check();
+
+                    //stop checking once every storage is closed, Track starts it again
+                    if (s_storages.isEmpty())
+                        s_check = null;
+                    else
+                        s_handler.postDelayed(s_check, CheckInterval);
+                }
+            }
+        };
+
+        s_handler.postDelayed(s_check, CheckInterval);
+    }
+
+    private static Boolean IsAvailable()
+    {
+        if (s_available == null)
+        {
+            try
+            {
+                Class.forName("android.os.Handler");
+                s_available = true;
+            }
+            catch (Throwable exp)
+            {
+                s_available = false;
+            }
+        }
+
+        return s_available;
+    }
+}
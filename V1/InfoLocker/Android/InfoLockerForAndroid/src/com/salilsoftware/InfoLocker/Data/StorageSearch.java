@@ -0,0 +1,266 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.StringUtils;
+
+/*
+ * Finds a text in the names and contents of the notes and folders of several storages at once.
+ * The unlocked storages are walked together by NodeTraversal.ForEachParallel(), so even a single
+ * large storage is searched on every processor. Matching ignores case; contents are
+ * searched as utf-8 directly, without building a String for every note, so there only the case
+ * of ascii letters is ignored.
+ *
+ * Only the best Limit() results are kept: exact names first, then names starting with the text,
+ * names containing it and finally contents containing it, each by path. Run() returns them in
+ * that order. The search stops early only once Limit() exact names were found, and contents are
+ * not searched while the kept results all rank above a content match.
+ *
+ * Results are handed to the Listener as they enter the best Limit(), from the search threads
+ * but never two at a time. A result handed over may still be pushed out by a better one.
+ *
+ * The trees are read without locking: they must not change while Run() is in progress, which
+ * holds as long as they are only changed on the thread calling Run(). Cancel() may be called
+ * from anywhere.
+ */
+public class StorageSearch
+{
+    public static final int DefaultLimit = 100;
+
+    public static final int ExactName = 4;
+    public static final int NamePrefix = 3;
+    public static final int InName = 2;
+    public static final int InContent = 1;
+
+    public interface Listener
+    {
+        public abstract void HandleResult(Result result);
+    }
+
+    public static class Result
+    {
+        public StorageFile Storage() { return m_storage; }
+        public Node_Common Node() { return m_node; }
+        public String Path() { return m_path; }
+        public int Rank() { return m_rank; }
+
+        private StorageFile m_storage;
+        private Node_Common m_node;
+        private String m_path;
+        private int m_rank;
+
+        private Result(StorageFile storage, Node_Common node, String path, int rank)
+        {
+            m_storage = storage;
+            m_node = node;
+            m_path = path;
+            m_rank = rank;
+        }
+    }
+
+    //best first
+    private static final Comparator<Result> Order = new Comparator<Result>()
+    {
+        public int compare(Result object1, Result object2)
+        {
+            if (object1.Rank() != object2.Rank())
+                return (object2.Rank() - object1.Rank());
+
+            return object1.Path().compareToIgnoreCase(object2.Path());
+        }
+    };
+
+    private String m_text;
+    private byte[] m_pattern;
+    private int m_limit;
+    private Listener m_listener;
+    //worst of the kept results at the head
+    private PriorityQueue<Result> m_results;
+    private int m_exactNames;
+    //rank a result needs to be kept once Limit() were found
+    private volatile int m_floor;
+    private volatile boolean m_stopped;
+
+    public StorageSearch(String text)
+    {
+        m_text = text.toLowerCase();
+        m_pattern = Lower(StringUtils.ToUtf8(text));
+        m_limit = DefaultLimit;
+        m_listener = null;
+        m_results = null;
+        m_exactNames = 0;
+        m_floor = 0;
+        m_stopped = false;
+    }
+
+    public String Text() { return m_text; }
+
+    public int Limit() { return m_limit; }
+    public void Limit(int value) { m_limit = Math.max(1, value); }
+
+    public Listener ResultListener() { return m_listener; }
+    public void ResultListener(Listener value) { m_listener = value; }
+
+    public void Cancel() { m_stopped = true; }
+
+    public List<Result> Run(Collection<StorageFile> storages) throws Exception
+    {
+        long start = Metrics.Start();
+        m_results = new PriorityQueue<Result>(m_limit + 1, Collections.reverseOrder(Order));
+        m_exactNames = 0;
+        m_floor = 0;
+        m_stopped = (m_pattern.length == 0);
+
+        ArrayList<Node_Folder> roots = new ArrayList<Node_Folder>();
+        final IdentityHashMap<Node_Folder, StorageFile> stores = new IdentityHashMap<Node_Folder, StorageFile>();
+        for (StorageFile storage : storages)
+        {
+            if (storage.IsLocked() || !storage.IsResident())
+                continue;
+
+            roots.add(storage.RootNode());
+            stores.put(storage.RootNode(), storage);
+        }
+
+        if (!roots.isEmpty() && !m_stopped)
+        {
+            NodeTraversal.ForEachParallel(roots, new NodeTraversal.Visitor()
+            {
+                public Boolean Visit(Node_Common node) throws Exception
+                {
+                    Search(stores, node);
+                    return !m_stopped;
+                }
+            });
+        }
+
+        ArrayList<Result> results = null;
+        synchronized (this)
+        {
+            results = new ArrayList<Result>(m_results);
+        }
+
+        Collections.sort(results, Order);
+
+        Metrics.Stop("StorageSearch.Run", start);
+        Metrics.Count("StorageSearch.Results", results.size());
+        return results;
+    }
+
+    private void Search(IdentityHashMap<Node_Folder, StorageFile> stores, Node_Common node)
+    {
+        int rank = RankName(node.Name());
+
+        if ((rank == 0) && (m_floor <= InContent) && (node.NodeType() == Node_Common.Type.Note))
+        {
+            if (Contains(((Node_Note)node).ContentBytes(), m_pattern))
+                rank = InContent;
+        }
+
+        if ((rank == 0) || (rank < m_floor))
+            return;
+
+        //paths are only built for matches, up to the root which is not part of them
+        StringBuilder path = new StringBuilder();
+        path.append(node.Name());
+        Node_Folder root = node.Parent();
+        while (root.Parent() != null)
+        {
+            path.insert(0, Node_Folder.PathSeparator).insert(0, root.Name());
+            root = root.Parent();
+        }
+
+        Add(new Result(stores.get(root), node, path.toString(), rank));
+    }
+
+    private synchronized void Add(Result result)
+    {
+        if (m_stopped)
+            return;
+
+        if (m_results.size() >= m_limit)
+        {
+            if (Order.compare(result, m_results.peek()) >= 0)
+                return;
+
+            m_results.poll();
+        }
+
+        m_results.add(result);
+        if (m_listener != null)
+            m_listener.HandleResult(result);
+
+        if (m_results.size() >= m_limit)
+            m_floor = m_results.peek().Rank();
+
+        //nothing can rank above an exact name
+        if ((result.Rank() == ExactName) && (++m_exactNames >= m_limit))
+            m_stopped = true;
+    }
+
+    private int RankName(String name)
+    {
+        if ((name == null) || (name.length() < m_text.length()))
+            return 0;
+
+        //compared in place, a lower case copy of every name would be garbage
+        if (name.equalsIgnoreCase(m_text))
+            return ExactName;
+        else if (name.regionMatches(true, 0, m_text, 0, m_text.length()))
+            return NamePrefix;
+
+        int last = name.length() - m_text.length();
+        for (int index = 1; index <= last; index++)
+        {
+            if (name.regionMatches(true, index, m_text, 0, m_text.length()))
+                return InName;
+        }
+
+        return 0;
+    }
+
+    //pattern is lower case already, only ascii letters of the content are folded
+    private static Boolean Contains(byte[] content, byte[] pattern)
+    {
+        if ((content == null) || (content.length < pattern.length))
+            return false;
+
+        byte first = pattern[0];
+        int last = content.length - pattern.length;
+        for (int index = 0; index <= last; index++)
+        {
+            if (Lower(content[index]) != first)
+                continue;
+
+            int offset = 1;
+            while ((offset < pattern.length) && (Lower(content[index + offset]) == pattern[offset]))
+                offset++;
+
+            if (offset == pattern.length)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static byte Lower(byte value)
+    {
+        return ((value >= 'A') && (value <= 'Z')) ? (byte)(value + ('a' - 'A')) : value;
+    }
+
+    private static byte[] Lower(byte[] value)
+    {
+        byte[] lower = new byte[value.length];
+        for (int index = 0; index < value.length; index++)
+            lower[index] = Lower(value[index]);
+
+        return lower;
+    }
+}
@@ -0,0 +1,151 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+/*
+ * Watches the directories of all open storages and tells a storage when its file was
+ * written by someone else. Events for a file are coalesced for DebounceDelay milliseconds
+ * and then delivered on the main thread, where the storage checks its file attributes once
+ * and raises "ExternalChange" only if the file really differs from what it last read or wrote.
+ */
+public class StorageWatcher
+{
+    public static final long DebounceDelay = 250;
+
+    private static final int EventMask = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE;
+
+    private static HashMap<String, DirectoryObserver> s_observers = new HashMap<String, DirectoryObserver>();
+    private static Handler s_handler = null;
+    private static Boolean s_available = null;
+
+    private static class DirectoryObserver extends FileObserver
+    {
+        public LinkedList<StorageFile> Storages;
+
+        private HashMap<StorageFile, Runnable> m_pending;
+
+        public DirectoryObserver(String directory)
+        {
+            super(directory, EventMask);
+            Storages = new LinkedList<StorageFile>();
+            m_pending = new HashMap<StorageFile, Runnable>();
+        }
+
+        @Override
+        public void onEvent(int event, String path)
+        {
+            if (path == null)
+                return;
+
+            synchronized (StorageWatcher.class)
+            {
+                for (final StorageFile storage : Storages)
+                {
+                    if (!path.equals(new File(storage.FileName()).getName()))
+                        continue;
+
+                    Runnable pending = m_pending.get(storage);
+                    if (pending != null)
+                    {
+                        s_handler.removeCallbacks(pending);
+                    }
+                    else
+                    {
+                        pending = new Runnable()
+                        {
+                            public void run()
+                            {
+                                synchronized (StorageWatcher.class)
+                                {
+                                    m_pending.remove(storage);
+                                }
+
+                                storage.HandleExternalChange();
+                            }
+                        };
+
+                        m_pending.put(storage, pending);
+                    }
+
+                    s_handler.postDelayed(pending, DebounceDelay);
+                }
+            }
+        }
+
+        public void Cancel(StorageFile storage)
+        {
+            Runnable pending = m_pending.remove(storage);
+            if (pending != null)
+                s_handler.removeCallbacks(pending);
+        }
+    }
+
+    public static synchronized void Watch(StorageFile storage)
+    {
+        if (!IsAvailable())
+            return;
+
+        if (s_handler == null)
+            s_handler = new Handler(Looper.getMainLooper());
+
+        String directory = Directory(storage);
+        DirectoryObserver observer = s_observers.get(directory);
+        if (observer == null)
+        {
+            observer = new DirectoryObserver(directory);
+            s_observers.put(directory, observer);
+            observer.startWatching();
+        }
+
+        if (!observer.Storages.contains(storage))
+            observer.Storages.add(storage);
+    }
+
+    public static synchronized void UnWatch(StorageFile storage)
+    {
+        String directory = Directory(storage);
+        DirectoryObserver observer = s_observers.get(directory);
+        if (observer == null)
+            return;
+
+        observer.Cancel(storage);
+        observer.Storages.remove(storage);
+
+        //one observer per directory, dropped with the last storage in it
+        if (observer.Storages.size() == 0)
+        {
+            observer.stopWatching();
+            s_observers.remove(directory);
+        }
+    }
+
+    //file observers only exist on the device, tools running the storage code on a plain JVM go without
+    public static synchronized Boolean IsAvailable()
+    {
+        if (s_available == null)
+        {
+            try
+            {
+                Class.forName("android.os.FileObserver");
+                s_available = true;
+            }
+            catch (Throwable exp)
+            {
+                s_available = false;
+            }
+        }
+
+        return s_available;
+    }
+
+    private static String Directory(StorageFile storage)
+    {
+        return new File(storage.FileName()).getAbsoluteFile().getParent();
+    }
+}
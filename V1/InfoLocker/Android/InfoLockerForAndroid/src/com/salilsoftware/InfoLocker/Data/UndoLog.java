@@ -0,0 +1,640 @@
+package com.salilsoftware.InfoLocker.Data;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import com.salilsoftware.InfoLocker.Utilities.Metrics;
+import com.salilsoftware.InfoLocker.Utilities.NotifyProvider;
+
+/*
+ * Undo and redo for the tree of one storage. Every change to a node in the storage is recorded
+ * as a small inverse operation, and operations are grouped into steps: everything between
+ * Begin() and End(), or a single change made outside of them. Content edits only keep the
+ * changed range, and consecutive edits of the same note within MergeDelay milliseconds are
+ * folded into one step. Steps are dropped oldest first once the log holds more than Budget()
+ * bytes, except for the most recent undo step.
+ *
+ * Undoing or redoing a step replays only its operations, so only the nodes it touched notify.
+ *
+ * A change that spans several storages, like moving nodes from one to another, is one step
+ * shared by all their logs. Undoing or redoing it in any of them replays all of it and takes
+ * it off the others too, so a moved node always ends up on one side. That is only done while
+ * it is the latest step in every log holding it.
+ */
+public class UndoLog extends NotifyProvider
+{
+    public static final long DefaultBudget = 256 * 1024;
+    public static final long MergeDelay = 1000;
+
+    //rough cost of an operation object and its references, on top of the data it keeps
+    private static final int OperationOverhead = 32;
+
+    static abstract class Operation
+    {
+        abstract void Undo();
+        abstract void Redo();
+        abstract long Size();
+    }
+
+    private static class Step
+    {
+        public ArrayList<Operation> Operations = new ArrayList<Operation>(1);
+        public long Size = 0;
+        public long Time = 0;
+        //every log holding the step when it is shared, null otherwise
+        public ArrayList<UndoLog> Logs = null;
+    }
+
+    private LinkedList<Step> m_undo;
+    private LinkedList<Step> m_redo;
+    private Step m_open;
+    private int m_depth;
+    private long m_size;
+    private long m_budget;
+    private boolean m_replaying;
+    private boolean m_mergeable;
+
+    public UndoLog()
+    {
+        m_undo = new LinkedList<Step>();
+        m_redo = new LinkedList<Step>();
+        m_budget = DefaultBudget;
+        Clear();
+    }
+
+    public Boolean CanUndo() { return !m_undo.isEmpty(); }
+    public Boolean CanRedo() { return !m_redo.isEmpty(); }
+
+    public long Size() { return m_size; }
+
+    public long Budget() { return m_budget; }
+    public void Budget(long value)
+    {
+        m_budget = value;
+        Trim();
+    }
+
+    public void Clear()
+    {
+        m_undo.clear();
+        m_redo.clear();
+        m_open = null;
+        m_depth = 0;
+        m_size = 0;
+        m_replaying = false;
+        m_mergeable = false;
+
+        NotifyPropertyChanged("CanUndo");
+        NotifyPropertyChanged("CanRedo");
+    }
+
+    //everything recorded until the matching End() is undone and redone as one step
+    public void Begin()
+    {
+        m_depth++;
+        m_mergeable = false;
+    }
+
+    public void End()
+    {
+        if (m_depth == 0)
+            return;
+
+        m_depth--;
+        if ((m_depth == 0) && (m_open != null))
+        {
+            //a shared step may have got nothing at all
+            if (!m_open.Operations.isEmpty())
+                Push(m_open);
+
+            m_open = null;
+        }
+    }
+
+    //Begin() on several logs at once, whatever they record until End(logs) is one shared step.
+    //a log that is in a step of its own already keeps recording into that
+    static void Begin(ArrayList<UndoLog> logs)
+    {
+        if (logs.size() == 1)
+        {
+            logs.get(0).Begin();
+            return;
+        }
+
+        Step shared = new Step();
+        shared.Logs = new ArrayList<UndoLog>();
+
+        for (UndoLog log : logs)
+        {
+            log.Begin();
+            if (log.m_depth == 1)
+            {
+                log.m_open = shared;
+                shared.Logs.add(log);
+            }
+        }
+    }
+
+    static void End(ArrayList<UndoLog> logs)
+    {
+        for (UndoLog log : logs)
+            log.End();
+    }
+
+    public Boolean Undo()
+    {
+        if (m_undo.isEmpty() || !IsLatest(m_undo.getLast(), true))
+            return false;
+
+        long start = Metrics.Start();
+        Step step = m_undo.getLast();
+        Replaying(step, true);
+
+        try
+        {
+            for (int index = step.Operations.size() - 1; index >= 0; index--)
+                step.Operations.get(index).Undo();
+        }
+        finally
+        {
+            Replaying(step, false);
+        }
+
+        for (UndoLog log : Holders(step))
+        {
+            if (log.m_undo.isEmpty() || (log.m_undo.getLast() != step))
+                continue;
+
+            log.m_undo.removeLast();
+            log.m_redo.addLast(step);
+            log.NotifyPropertyChanged("CanUndo");
+            log.NotifyPropertyChanged("CanRedo");
+        }
+
+        Metrics.Stop("UndoLog.Undo", start);
+        return true;
+    }
+
+    public Boolean Redo()
+    {
+        if (m_redo.isEmpty() || !IsLatest(m_redo.getLast(), false))
+            return false;
+
+        long start = Metrics.Start();
+        Step step = m_redo.getLast();
+        Replaying(step, true);
+
+        try
+        {
+            for (Operation operation : step.Operations)
+                operation.Redo();
+        }
+        finally
+        {
+            Replaying(step, false);
+        }
+
+        for (UndoLog log : Holders(step))
+        {
+            if (log.m_redo.isEmpty() || (log.m_redo.getLast() != step))
+                continue;
+
+            log.m_redo.removeLast();
+            log.m_undo.addLast(step);
+            log.NotifyPropertyChanged("CanUndo");
+            log.NotifyPropertyChanged("CanRedo");
+        }
+
+        Metrics.Stop("UndoLog.Redo", start);
+        return true;
+    }
+
+    private ArrayList<UndoLog> Holders(Step step)
+    {
+        if (step.Logs != null)
+            return step.Logs;
+
+        ArrayList<UndoLog> logs = new ArrayList<UndoLog>(1);
+        logs.add(this);
+        return logs;
+    }
+
+    //a shared step undone in one log while another has newer steps would undo under them
+    private Boolean IsLatest(Step step, Boolean undo)
+    {
+        for (UndoLog log : Holders(step))
+        {
+            LinkedList<Step> steps = undo ? log.m_undo : log.m_redo;
+            if (steps.contains(step) && (steps.getLast() != step))
+                return false;
+        }
+
+        return true;
+    }
+
+    private void Replaying(Step step, Boolean value)
+    {
+        for (UndoLog log : Holders(step))
+        {
+            log.m_replaying = value;
+            log.m_mergeable = false;
+        }
+    }
+
+    void RecordAdd(Node_Folder folder, Node_Common node, int index)
+    {
+        if (IsRecording())
+            Record(new AddOperation(folder, node, index));
+    }
+
+    void RecordRemove(Node_Folder folder, Node_Common node, int index, Boolean moving)
+    {
+        if (IsRecording())
+            Record(new RemoveOperation(folder, node, index, moving));
+    }
+
+    void RecordName(Node_Common node, String oldName, String newName)
+    {
+        if (IsRecording())
+            Record(new NameOperation(node, oldName, newName));
+    }
+
+    void RecordSort(Node_Folder folder, ArrayList<Node_Folder> folders, ArrayList<Node_Note> notes)
+    {
+        if (IsRecording())
+            Record(new SortOperation(folder, folders, notes));
+    }
+
+    void RecordContent(Node_Note note, byte[] oldContent, byte[] newContent)
+    {
+        if (!IsRecording())
+            return;
+
+        //typing into a note arrives as one change per keystroke, keep it as one step
+        Step last = MergeableStep(note);
+        if ((last != null) && (last.Operations.get(0) instanceof ContentOperation))
+        {
+            ContentOperation previous = (ContentOperation)last.Operations.get(0);
+            Replace(last, new ContentOperation(note, previous.Revert(oldContent), newContent));
+            return;
+        }
+
+        Record(new ContentOperation(note, oldContent, newContent));
+        m_mergeable = (m_depth == 0);
+    }
+
+    void RecordEdit(Node_Note note, int offset, String removed, String inserted)
+    {
+        if (!IsRecording())
+            return;
+
+        Step last = MergeableStep(note);
+        if ((last != null) && (last.Operations.get(0) instanceof EditOperation))
+        {
+            EditOperation merged = ((EditOperation)last.Operations.get(0)).Merge(offset, removed, inserted);
+            if (merged != null)
+            {
+                Replace(last, merged);
+                return;
+            }
+        }
+
+        Record(new EditOperation(note, offset, removed, inserted));
+        m_mergeable = (m_depth == 0);
+    }
+
+    //the last step if the next change of the note may be folded into it
+    private Step MergeableStep(Node_Note note)
+    {
+        Step last = m_undo.isEmpty() ? null : m_undo.getLast();
+        if (!m_mergeable || (m_depth != 0) || (last == null) || (last.Operations.size() != 1) ||
+            ((System.currentTimeMillis() - last.Time) > MergeDelay))
+            return null;
+
+        Operation operation = last.Operations.get(0);
+        if ((operation instanceof ContentOperation) && (((ContentOperation)operation).m_note == note))
+            return last;
+        if ((operation instanceof EditOperation) && (((EditOperation)operation).m_note == note))
+            return last;
+
+        return null;
+    }
+
+    private void Replace(Step step, Operation operation)
+    {
+        m_size += operation.Size() - step.Size;
+        step.Operations.set(0, operation);
+        step.Size = operation.Size();
+        step.Time = System.currentTimeMillis();
+        Trim();
+    }
+
+    private Boolean IsRecording()
+    {
+        return !m_replaying;
+    }
+
+    private void Record(Operation operation)
+    {
+        if (!m_redo.isEmpty())
+        {
+            for (Step step : m_redo)
+            {
+                m_size -= step.Size;
+
+                //the other logs cannot redo it either once this one moved on
+                if (step.Logs != null)
+                {
+                    for (UndoLog log : step.Logs)
+                    {
+                        if ((log != this) && log.m_redo.remove(step))
+                        {
+                            log.m_size -= step.Size;
+                            log.NotifyPropertyChanged("CanRedo");
+                        }
+                    }
+                }
+            }
+
+            m_redo.clear();
+            NotifyPropertyChanged("CanRedo");
+        }
+
+        m_mergeable = false;
+
+        Step step = (m_depth > 0) ? m_open : null;
+        if (step == null)
+            step = new Step();
+
+        step.Operations.add(operation);
+        step.Size += operation.Size();
+        step.Time = System.currentTimeMillis();
+
+        if (m_depth > 0)
+            m_open = step;
+        else
+            Push(step);
+    }
+
+    private void Push(Step step)
+    {
+        m_undo.addLast(step);
+        m_size += step.Size;
+        Trim();
+
+        if (m_undo.size() == 1)
+            NotifyPropertyChanged("CanUndo");
+    }
+
+    private void Trim()
+    {
+        //the oldest undo steps go first, then the redo steps furthest away
+        while (m_size > m_budget)
+        {
+            if (m_undo.size() > 1)
+                m_size -= m_undo.removeFirst().Size;
+            else if (!m_redo.isEmpty())
+                m_size -= m_redo.removeFirst().Size;
+            else
+                break;
+
+            Metrics.Count("UndoLog.Evicted");
+        }
+    }
+
+    private static long NodeSize(Node_Common node)
+    {
+        //a removed subtree is kept alive only by the log, so it counts against the budget.
+        //names below the node are left out, the folder totals do not keep them
+        long size = OperationOverhead + ((node.Name() == null) ? 0 : (node.Name().length() * 2));
+
+        if (node.NodeType() == Node_Common.Type.Folder)
+        {
+            Node_Folder folder = (Node_Folder)node;
+            size += (OperationOverhead * ((long)folder.TotalFolders() + folder.TotalNotes())) + folder.TotalContentLength();
+        }
+        else
+        {
+            size += ((Node_Note)node).ContentLength();
+        }
+
+        return size;
+    }
+
+    private static class AddOperation extends Operation
+    {
+        private Node_Folder m_folder;
+        private Node_Common m_node;
+        private int m_index;
+
+        public AddOperation(Node_Folder folder, Node_Common node, int index)
+        {
+            m_folder = folder;
+            m_node = node;
+            m_index = index;
+        }
+
+        void Undo() { m_folder.RemoveNode(m_node); }
+        void Redo() { m_folder.InsertNode(m_node, m_index); }
+        long Size() { return OperationOverhead; }
+    }
+
+    private static class RemoveOperation extends Operation
+    {
+        private Node_Folder m_folder;
+        private Node_Common m_node;
+        private int m_index;
+        private long m_size;
+
+        //a moved node is kept alive by the tree it moved to, not by the log
+        public RemoveOperation(Node_Folder folder, Node_Common node, int index, Boolean moving)
+        {
+            m_folder = folder;
+            m_node = node;
+            m_index = index;
+            m_size = moving ? OperationOverhead : NodeSize(node);
+        }
+
+        void Undo() { m_folder.InsertNode(m_node, m_index); }
+        void Redo() { m_folder.RemoveNode(m_node); }
+        long Size() { return m_size; }
+    }
+
+    private static class NameOperation extends Operation
+    {
+        private Node_Common m_node;
+        private String m_oldName;
+        private String m_newName;
+
+        public NameOperation(Node_Common node, String oldName, String newName)
+        {
+            m_node = node;
+            m_oldName = oldName;
+            m_newName = newName;
+        }
+
+        void Undo() { m_node.Name(m_oldName); }
+        void Redo() { m_node.Name(m_newName); }
+
+        long Size()
+        {
+            return OperationOverhead +
+                   ((m_oldName == null) ? 0 : (m_oldName.length() * 2)) +
+                   ((m_newName == null) ? 0 : (m_newName.length() * 2));
+        }
+    }
+
+    private static class SortOperation extends Operation
+    {
+        private Node_Folder m_folder;
+        private ArrayList<Node_Folder> m_folders;
+        private ArrayList<Node_Note> m_notes;
+
+        //the order before sorting, null for a list that was already sorted
+        public SortOperation(Node_Folder folder, ArrayList<Node_Folder> folders, ArrayList<Node_Note> notes)
+        {
+            m_folder = folder;
+            m_folders = folders;
+            m_notes = notes;
+        }
+
+        void Undo() { m_folder.Reorder(m_folders, m_notes); }
+        void Redo() { m_folder.SortNodes(0); }
+
+        long Size()
+        {
+            return OperationOverhead +
+                   ((m_folders == null) ? 0 : (m_folders.size() * 4)) +
+                   ((m_notes == null) ? 0 : (m_notes.size() * 4));
+        }
+    }
+
+    //a content change kept as the range that differs: at m_offset, m_removed was replaced by m_inserted
+    private static class ContentOperation extends Operation
+    {
+        private Node_Note m_note;
+        private int m_offset;
+        private byte[] m_removed;
+        private byte[] m_inserted;
+        private boolean m_oldNull;
+        private boolean m_newNull;
+
+        public ContentOperation(Node_Note note, byte[] oldContent, byte[] newContent)
+        {
+            m_note = note;
+            m_oldNull = (oldContent == null);
+            m_newNull = (newContent == null);
+
+            if (oldContent == null)
+                oldContent = new byte[0];
+            if (newContent == null)
+                newContent = new byte[0];
+
+            int prefix = 0;
+            int limit = Math.min(oldContent.length, newContent.length);
+            while ((prefix < limit) && (oldContent[prefix] == newContent[prefix]))
+                prefix++;
+
+            int suffix = 0;
+            limit -= prefix;
+            while ((suffix < limit) &&
+                   (oldContent[oldContent.length - 1 - suffix] == newContent[newContent.length - 1 - suffix]))
+                suffix++;
+
+            m_offset = prefix;
+            m_removed = Slice(oldContent, prefix, oldContent.length - suffix);
+            m_inserted = Slice(newContent, prefix, newContent.length - suffix);
+        }
+
+        void Undo() { m_note.ContentBytes(Revert(m_note.ContentBytes())); }
+        void Redo() { m_note.ContentBytes(Apply(m_note.ContentBytes())); }
+        long Size() { return OperationOverhead + m_removed.length + m_inserted.length; }
+
+        public byte[] Apply(byte[] content)
+        {
+            return m_newNull ? null : Replace(content, m_inserted, m_removed.length);
+        }
+
+        public byte[] Revert(byte[] content)
+        {
+            return m_oldNull ? null : Replace(content, m_removed, m_inserted.length);
+        }
+
+        private byte[] Replace(byte[] content, byte[] insert, int deleteLength)
+        {
+            if (content == null)
+                content = new byte[0];
+
+            byte[] result = new byte[content.length - deleteLength + insert.length];
+            System.arraycopy(content, 0, result, 0, m_offset);
+            System.arraycopy(insert, 0, result, m_offset, insert.length);
+            System.arraycopy(content, m_offset + deleteLength, result, m_offset + insert.length,
+                             content.length - m_offset - deleteLength);
+            return result;
+        }
+
+        private static byte[] Slice(byte[] bytes, int from, int to)
+        {
+            byte[] slice = new byte[to - from];
+            System.arraycopy(bytes, from, slice, 0, slice.length);
+            return slice;
+        }
+    }
+
+    //an edit kept as it was made: at m_offset, m_removed was replaced by m_inserted
+    private static class EditOperation extends Operation
+    {
+        private Node_Note m_note;
+        private int m_offset;
+        private String m_removed;
+        private String m_inserted;
+
+        public EditOperation(Node_Note note, int offset, String removed, String inserted)
+        {
+            m_note = note;
+            m_offset = offset;
+            m_removed = removed;
+            m_inserted = inserted;
+        }
+
+        void Undo() { Apply(m_inserted.length(), m_removed); }
+        void Redo() { Apply(m_removed.length(), m_inserted); }
+        long Size() { return OperationOverhead + ((m_removed.length() + m_inserted.length()) * 2); }
+
+        private void Apply(int deleteLength, String insert)
+        {
+            try
+            {
+                m_note.ApplyEdit(m_offset, deleteLength, insert);
+            }
+            catch (Exception exp)
+            {
+                throw (new RuntimeException("Could not replay edit of '" + m_note.Name() + "'", exp));
+            }
+        }
+
+        //the edit followed by the next one when both are one run of typing or deleting, else null
+        public EditOperation Merge(int offset, String removed, String inserted)
+        {
+            int end = m_offset + m_inserted.length();
+
+            //typing on
+            if ((removed.length() == 0) && (offset == end))
+                return new EditOperation(m_note, m_offset, m_removed, m_inserted + inserted);
+
+            //deleting back into what was typed
+            if ((inserted.length() == 0) && (offset >= m_offset) && (offset + removed.length() == end))
+                return new EditOperation(m_note, m_offset, m_removed, m_inserted.substring(0, offset - m_offset));
+
+            //deleting further back, before what this step replaced
+            if ((inserted.length() == 0) && (m_inserted.length() == 0) && (offset + removed.length() == m_offset))
+                return new EditOperation(m_note, offset, removed + m_removed, "");
+
+            //deleting forward from the same place
+            if ((inserted.length() == 0) && (m_inserted.length() == 0) && (offset == m_offset))
+                return new EditOperation(m_note, m_offset, m_removed + removed, "");
+
+            return null;
+        }
+    }
+}
@@ -2,11 +2,15 @@ package com.salilsoftware.InfoLocker;
 
 import com.salilsoftware.InfoLocker.Data.Node_Note;
 import com.salilsoftware.InfoLocker.Data.StorageFile;
+import com.salilsoftware.InfoLocker.Data.StorageReclaimer;
 
 import android.app.Activity;
 import android.os.Bundle;
 
 public class InfoLocker extends Activity {
+    //the storage this screen shows, interaction here only keeps that one unlocked
+    private StorageFile m_storage = null;
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -17,6 +21,7 @@ public class InfoLocker extends Activity {
         {
 			StorageFile file = new StorageFile("/sdcard/salil.stg");
 			file.UnLock("sumi1234");
+			m_storage = file;
 			
 			Node_Note newNote = new Node_Note();
 			newNote.Name("test");
@@ -30,4 +35,16 @@ public class InfoLocker extends Activity {
 			e.printStackTrace();
 		}
     }
+
+    @Override
+    public void onUserInteraction() {
+        super.onUserInteraction();
+        StorageReclaimer.Touch(m_storage);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        StorageReclaimer.LowMemory();
+    }
 }
\ No newline at end of file
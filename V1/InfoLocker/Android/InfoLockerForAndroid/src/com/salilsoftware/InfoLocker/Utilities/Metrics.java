@@ -0,0 +1,55 @@
+package com.salilsoftware.InfoLocker.Utilities;
+
+/*
+ * Entry point for instrumentation. Nothing is collected until a sink is installed;
+ * without one every call is a single field read, and Start() does not even read the clock.
+ *
+ *   long start = Metrics.Start();
+ *   ...
+ *   Metrics.Stop("StorageFile.Parse", start);
+ */
+public class Metrics
+{
+	private static volatile MetricsSink s_sink = null;
+
+	public static MetricsSink Sink() { return s_sink; }
+	public static void Sink(MetricsSink value) { s_sink = value; }
+
+	public static Boolean IsEnabled() { return (s_sink != null); }
+
+	public static long Start()
+	{
+		if (s_sink == null)
+			return 0;
+
+		return System.nanoTime();
+	}
+
+	public static void Stop(String name, long start)
+	{
+		MetricsSink sink = s_sink;
+		if ((sink != null) && (start != 0))
+			sink.Time(name, System.nanoTime() - start);
+	}
+
+	public static void Count(String name)
+	{
+		MetricsSink sink = s_sink;
+		if (sink != null)
+			sink.Count(name, 1);
+	}
+
+	public static void Count(String name, long delta)
+	{
+		MetricsSink sink = s_sink;
+		if (sink != null)
+			sink.Count(name, delta);
+	}
+
+	public static void Record(String name, long value)
+	{
+		MetricsSink sink = s_sink;
+		if (sink != null)
+			sink.Record(name, value);
+	}
+}
@@ -0,0 +1,133 @@
+package com.salilsoftware.InfoLocker.Utilities;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * In memory sink. Counters are plain sums, timers and recorded values keep count, total,
+ * min, max and a power of two histogram from which percentiles are estimated.
+ */
+public class MetricsRegistry implements MetricsSink
+{
+	private static class Distribution
+	{
+		public long Count = 0;
+		public long Total = 0;
+		public long Min = Long.MAX_VALUE;
+		public long Max = Long.MIN_VALUE;
+		public long[] Buckets = new long[64];
+
+		public void Add(long value)
+		{
+			Count++;
+			Total += value;
+			Min = Math.min(Min, value);
+			Max = Math.max(Max, value);
+			Buckets[Bucket(value)]++;
+		}
+
+		//upper bound of the bucket holding the given percentile
+		public long Percentile(int percent)
+		{
+			long target = Math.max(1, (Count * percent + 99) / 100);
+			long seen = 0;
+			for (int index = 0; index < Buckets.length; index++)
+			{
+				seen += Buckets[index];
+				if (seen >= target)
+					return Math.min(Max, (index == 0) ? 0 : ((1L << index) - 1));
+			}
+
+			return Max;
+		}
+
+		private static int Bucket(long value)
+		{
+			if (value <= 0)
+				return 0;
+
+			return Math.min(63, 64 - Long.numberOfLeadingZeros(value));
+		}
+	}
+
+	private HashMap<String, Long> m_counters;
+	private HashMap<String, Distribution> m_timers;
+	private HashMap<String, Distribution> m_values;
+
+	public MetricsRegistry()
+	{
+		m_counters = new HashMap<String, Long>();
+		m_timers = new HashMap<String, Distribution>();
+		m_values = new HashMap<String, Distribution>();
+	}
+
+	public synchronized void Count(String name, long delta)
+	{
+		Long current = m_counters.get(name);
+		m_counters.put(name, (current == null) ? delta : (current + delta));
+	}
+
+	public synchronized void Time(String name, long nanoseconds)
+	{
+		Get(m_timers, name).Add(nanoseconds);
+	}
+
+	public synchronized void Record(String name, long value)
+	{
+		Get(m_values, name).Add(value);
+	}
+
+	public synchronized void Reset()
+	{
+		m_counters.clear();
+		m_timers.clear();
+		m_values.clear();
+	}
+
+	//flat, sorted view such as "StorageFile.Parse.p90" -> nanoseconds
+	public synchronized TreeMap<String, Long> Snapshot()
+	{
+		TreeMap<String, Long> snapshot = new TreeMap<String, Long>(m_counters);
+
+		for (Map.Entry<String, Distribution> entry : m_timers.entrySet())
+			Flatten(snapshot, entry.getKey() + ".ns", entry.getValue());
+
+		for (Map.Entry<String, Distribution> entry : m_values.entrySet())
+			Flatten(snapshot, entry.getKey(), entry.getValue());
+
+		return snapshot;
+	}
+
+	public String Dump()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Long> entry : Snapshot().entrySet())
+			builder.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+
+		return builder.toString();
+	}
+
+	private static Distribution Get(HashMap<String, Distribution> map, String name)
+	{
+		Distribution distribution = map.get(name);
+		if (distribution == null)
+		{
+			distribution = new Distribution();
+			map.put(name, distribution);
+		}
+
+		return distribution;
+	}
+
+	private static void Flatten(TreeMap<String, Long> snapshot, String name, Distribution distribution)
+	{
+		snapshot.put(name + ".count", distribution.Count);
+		snapshot.put(name + ".total", distribution.Total);
+		snapshot.put(name + ".min", distribution.Min);
+		snapshot.put(name + ".max", distribution.Max);
+		snapshot.put(name + ".p50", distribution.Percentile(50));
+		snapshot.put(name + ".p90", distribution.Percentile(90));
+		snapshot.put(name + ".p99", distribution.Percentile(99));
+	}
+}
@@ -0,0 +1,8 @@
+package com.salilsoftware.InfoLocker.Utilities;
+
+public interface MetricsSink
+{
+	public abstract void Count(String name, long delta);
+	public abstract void Time(String name, long nanoseconds);
+	public abstract void Record(String name, long value);
+}
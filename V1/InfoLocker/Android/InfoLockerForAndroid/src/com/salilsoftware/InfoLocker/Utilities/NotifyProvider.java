@@ -1,20 +1,87 @@
 package com.salilsoftware.InfoLocker.Utilities;
 
-import java.util.LinkedList;
-
 
 public class NotifyProvider
 {
-	public LinkedList<NotifyConsumer> Listners;
+	//most providers have one or two listeners, so they live in an exactly sized array
+	//that is allocated with the first listener and replaced whenever the set changes.
+	//a notification in progress keeps walking the array it started with.
+	private NotifyConsumer[] m_listners;
 	
 	public NotifyProvider()
 	{
-		Listners = new LinkedList<NotifyConsumer>();
+		m_listners = null;
+	}
+
+	public int ListnerCount()
+	{
+		return (m_listners == null) ? 0 : m_listners.length;
+	}
+
+	public Boolean HasListner(NotifyConsumer consumer)
+	{
+		return (IndexOf(consumer) >= 0);
+	}
+
+	public void AddListner(NotifyConsumer consumer)
+	{
+		int count = ListnerCount();
+		NotifyConsumer[] listners = new NotifyConsumer[count + 1];
+		if (count > 0)
+			System.arraycopy(m_listners, 0, listners, 0, count);
+
+		listners[count] = consumer;
+		m_listners = listners;
+	}
+
+	public Boolean RemoveListner(NotifyConsumer consumer)
+	{
+		int index = IndexOf(consumer);
+		if (index < 0)
+			return false;
+
+		int count = m_listners.length;
+		if (count == 1)
+		{
+			m_listners = null;
+			return true;
+		}
+
+		NotifyConsumer[] listners = new NotifyConsumer[count - 1];
+		System.arraycopy(m_listners, 0, listners, 0, index);
+		System.arraycopy(m_listners, index + 1, listners, index, count - index - 1);
+		m_listners = listners;
+		return true;
+	}
+
+	private int IndexOf(NotifyConsumer consumer)
+	{
+		if (m_listners == null)
+			return -1;
+
+		for (int index = 0; index < m_listners.length; index++)
+		{
+			if (m_listners[index] == consumer)
+				return index;
+		}
+
+		return -1;
 	}
 	
 	public void NotifyPropertyChanged(String propName)
 	{
-		for (NotifyConsumer consumer : Listners)
+		NotifyConsumer[] listners = m_listners;
+
+		if (Metrics.IsEnabled())
+		{
+			Metrics.Count("NotifyProvider.Notifications");
+			Metrics.Count("NotifyProvider.Deliveries", (listners == null) ? 0 : listners.length);
+		}
+
+		if (listners == null)
+			return;
+
+		for (NotifyConsumer consumer : listners)
 			consumer.HandlePropertyChange(this, propName);
 	}
 }
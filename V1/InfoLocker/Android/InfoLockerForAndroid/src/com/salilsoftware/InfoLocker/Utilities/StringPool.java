@@ -0,0 +1,106 @@
+package com.salilsoftware.InfoLocker.Utilities;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Size bounded intern pool. Lockers repeat the same names ("Username", "Password", "Work")
+ * and short values thousands of times; handing out one shared instance per distinct value
+ * keeps a single copy alive. The least recently used entries are dropped once the pool is
+ * full, values handed out before stay valid.
+ */
+public class StringPool
+{
+	public static final int DefaultCapacity = 4096;
+	public static final int MaxPooledBytes = 64;
+
+	private static class BytesKey
+	{
+		public byte[] Bytes;
+		private int m_hash;
+
+		public BytesKey(byte[] bytes)
+		{
+			Bytes = bytes;
+			m_hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public int hashCode() { return m_hash; }
+
+		@Override
+		public boolean equals(Object other)
+		{
+			return (other instanceof BytesKey) && Arrays.equals(Bytes, ((BytesKey)other).Bytes);
+		}
+	}
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V>
+	{
+		private static final long serialVersionUID = 1L;
+		private int m_capacity;
+
+		public LruMap(int capacity)
+		{
+			super(16, 0.75f, true);
+			m_capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+		{
+			return (size() > m_capacity);
+		}
+	}
+
+	private LruMap<String, String> m_strings;
+	private LruMap<BytesKey, byte[]> m_bytes;
+
+	public StringPool()
+	{
+		this(DefaultCapacity);
+	}
+
+	public StringPool(int capacity)
+	{
+		m_strings = new LruMap<String, String>(capacity);
+		m_bytes = new LruMap<BytesKey, byte[]>(capacity);
+	}
+
+	public int Size() { return m_strings.size() + m_bytes.size(); }
+
+	public void Clear()
+	{
+		m_strings.clear();
+		m_bytes.clear();
+	}
+
+	public String Intern(String value)
+	{
+		if (value == null)
+			return null;
+
+		String pooled = m_strings.get(value);
+		if (pooled != null)
+			return pooled;
+
+		m_strings.put(value, value);
+		return value;
+	}
+
+	//only short values are pooled, long ones are unlikely to repeat
+	public byte[] Intern(byte[] value)
+	{
+		if ((value == null) || (value.length > MaxPooledBytes))
+			return value;
+
+		BytesKey key = new BytesKey(value);
+		byte[] pooled = m_bytes.get(key);
+		if (pooled != null)
+			return pooled;
+
+		m_bytes.put(key, value);
+		return value;
+	}
+}
@@ -31,4 +31,51 @@ public class StringUtils
 		
 		return false;
 	}
+
+	public static byte[] ToUtf8(String str)
+	{
+		if (str == null)
+			return null;
+
+		try
+		{
+			return str.getBytes("utf-8");
+		}
+		catch (java.io.UnsupportedEncodingException exp)
+		{
+			throw (new RuntimeException(exp));
+		}
+	}
+
+	public static String FromUtf8(byte[] bytes)
+	{
+		if (bytes == null)
+			return null;
+
+		try
+		{
+			return new String(bytes, "utf-8");
+		}
+		catch (java.io.UnsupportedEncodingException exp)
+		{
+			throw (new RuntimeException(exp));
+		}
+	}
+
+	public static String ToHex(byte[] bytes)
+	{
+		if (bytes == null)
+			return null;
+
+		char[] chars = new char[bytes.length * 2];
+		for (int index = 0; index < bytes.length; index++)
+		{
+			chars[index * 2] = HexDigits[(bytes[index] >> 4) & 0xF];
+			chars[index * 2 + 1] = HexDigits[bytes[index] & 0xF];
+		}
+
+		return new String(chars);
+	}
+
+	private static final char[] HexDigits = "0123456789abcdef".toCharArray();
 }
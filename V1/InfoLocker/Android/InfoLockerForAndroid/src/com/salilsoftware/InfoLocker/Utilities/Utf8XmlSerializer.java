@@ -0,0 +1,211 @@
+package com.salilsoftware.InfoLocker.Utilities;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import org.xmlpull.v1.XmlSerializer;
+
+/*
+ * XmlSerializer that writes utf-8 straight to a stream, for the documents storages are saved
+ * as. Besides Strings it takes attribute values that already are utf-8 (AttributeBytes), which
+ * are escaped on the way out without being decoded, so note contents kept as utf-8 are written
+ * without building a String for each. Escaping works on the bytes: every byte of a multi byte
+ * sequence is above 0x7f and is copied as it is.
+ *
+ * Only what storages use is supported: no namespaces, comments or other markup.
+ */
+public class Utf8XmlSerializer implements XmlSerializer
+{
+	private static final byte[] Amp = Ascii("&amp;");
+	private static final byte[] Lt = Ascii("&lt;");
+	private static final byte[] Gt = Ascii("&gt;");
+	private static final byte[] Quot = Ascii("&quot;");
+
+	private OutputStream m_output;
+	private ArrayList<String> m_tags;
+	private boolean m_startTagOpen;
+
+	public Utf8XmlSerializer()
+	{
+		m_output = null;
+		m_tags = new ArrayList<String>();
+		m_startTagOpen = false;
+	}
+
+	public void setOutput(OutputStream os, String encoding) throws IOException
+	{
+		if ((encoding != null) && !encoding.equalsIgnoreCase("utf-8"))
+			throw (new IllegalArgumentException("Only utf-8 is supported"));
+
+		m_output = os;
+		m_tags.clear();
+		m_startTagOpen = false;
+	}
+
+	public void setOutput(Writer writer) throws IOException
+	{
+		throw (new UnsupportedOperationException("Writes bytes only"));
+	}
+
+	public void startDocument(String encoding, Boolean standalone) throws IOException
+	{
+		Write("<?xml version='1.0' encoding='utf-8'");
+		if (standalone != null)
+			Write(standalone ? " standalone='yes'" : " standalone='no'");
+
+		Write(" ?>");
+	}
+
+	public void endDocument() throws IOException
+	{
+		while (!m_tags.isEmpty())
+			endTag(null, m_tags.get(m_tags.size() - 1));
+
+		flush();
+	}
+
+	public XmlSerializer startTag(String namespace, String name) throws IOException
+	{
+		CloseStartTag();
+		Write("<");
+		Write(name);
+		m_tags.add(name);
+		m_startTagOpen = true;
+		return this;
+	}
+
+	public XmlSerializer attribute(String namespace, String name, String value) throws IOException
+	{
+		return AttributeBytes(name, StringUtils.ToUtf8(value));
+	}
+
+	//value is utf-8 and is written without being decoded
+	public XmlSerializer AttributeBytes(String name, byte[] value) throws IOException
+	{
+		if (!m_startTagOpen)
+			throw (new IllegalStateException("Attribute outside of a start tag"));
+
+		Write(" ");
+		Write(name);
+		Write("=\"");
+		Escape(value, true);
+		Write("\"");
+		return this;
+	}
+
+	public XmlSerializer endTag(String namespace, String name) throws IOException
+	{
+		if (m_tags.isEmpty() || !m_tags.get(m_tags.size() - 1).equals(name))
+			throw (new IllegalStateException("End tag " + name + " does not match"));
+
+		m_tags.remove(m_tags.size() - 1);
+		if (m_startTagOpen)
+		{
+			Write(" />");
+			m_startTagOpen = false;
+		}
+		else
+		{
+			Write("</");
+			Write(name);
+			Write(">");
+		}
+
+		return this;
+	}
+
+	public XmlSerializer text(String text) throws IOException
+	{
+		CloseStartTag();
+		Escape(StringUtils.ToUtf8(text), false);
+		return this;
+	}
+
+	public XmlSerializer text(char[] buffer, int start, int length) throws IOException
+	{
+		return text(new String(buffer, start, length));
+	}
+
+	public void flush() throws IOException
+	{
+		CloseStartTag();
+		m_output.flush();
+	}
+
+	public int getDepth() { return m_tags.size(); }
+	public String getName() { return m_tags.isEmpty() ? null : m_tags.get(m_tags.size() - 1); }
+	public String getNamespace() { return null; }
+
+	public void setFeature(String name, boolean state) { throw (new UnsupportedOperationException(name)); }
+	public boolean getFeature(String name) { return false; }
+	public void setProperty(String name, Object value) { throw (new UnsupportedOperationException(name)); }
+	public Object getProperty(String name) { return null; }
+	public void setPrefix(String prefix, String namespace) { throw (new UnsupportedOperationException("Namespaces")); }
+	public String getPrefix(String namespace, boolean generatePrefix) { return null; }
+	public void cdsect(String text) { throw (new UnsupportedOperationException("cdsect")); }
+	public void entityRef(String text) { throw (new UnsupportedOperationException("entityRef")); }
+	public void processingInstruction(String text) { throw (new UnsupportedOperationException("processingInstruction")); }
+	public void comment(String text) { throw (new UnsupportedOperationException("comment")); }
+	public void docdecl(String text) { throw (new UnsupportedOperationException("docdecl")); }
+	public void ignorableWhitespace(String text) { throw (new UnsupportedOperationException("ignorableWhitespace")); }
+
+	private void CloseStartTag() throws IOException
+	{
+		if (m_startTagOpen)
+		{
+			Write(">");
+			m_startTagOpen = false;
+		}
+	}
+
+	//copies runs of plain bytes in one write, only the markup characters are replaced. in
+	//attributes white space is written as references, or a parser would normalize it
+	private void Escape(byte[] value, boolean attribute) throws IOException
+	{
+		if (value == null)
+			return;
+
+		int run = 0;
+		for (int index = 0; index < value.length; index++)
+		{
+			byte current = value[index];
+			byte[] replacement = null;
+
+			if (current == '&')
+				replacement = Amp;
+			else if (current == '<')
+				replacement = Lt;
+			else if (current == '>')
+				replacement = Gt;
+			else if (attribute && (current == '"'))
+				replacement = Quot;
+			else if ((current >= 0) && (current < 0x20) && (attribute || ((current != '\n') && (current != '\r') && (current != '\t'))))
+				replacement = Ascii("&#" + current + ";");
+
+			if (replacement != null)
+			{
+				m_output.write(value, run, index - run);
+				m_output.write(replacement);
+				run = index + 1;
+			}
+		}
+
+		m_output.write(value, run, value.length - run);
+	}
+
+	private void Write(String markup) throws IOException
+	{
+		m_output.write(Ascii(markup));
+	}
+
+	private static byte[] Ascii(String text)
+	{
+		byte[] bytes = new byte[text.length()];
+		for (int index = 0; index < bytes.length; index++)
+			bytes[index] = (byte)text.charAt(index);
+
+		return bytes;
+	}
+}